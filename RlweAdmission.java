@@ -0,0 +1,158 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Admission control for full handshakes, so that an overload sheds work early instead of letting
+ * every handshake queue for the CPU.
+ *
+ * The budget is a number of cores. Each admitted exchange is charged its expected CPU time,
+ * and admissions are paced by a token bucket in the GCRA form: a single atomic "theoretical
+ * arrival time" that advances by cost / cores per admission, and a request is admitted while it
+ * is no more than the burst ahead of the clock. Admitting is one CAS and rejecting is a read, a
+ * comparison and a counter increment, so the reject path stays cheap even when most requests
+ * are being turned away. An idle bucket always admits, however high the cost estimate.
+ *
+ * The cost is measured, not configured. The controller installs itself as the metrics recorder
+ * (forwarding to whatever was installed before) and adds up, per thread, the time of every
+ * instrumented phase (sampling, NTTs, pointwise products, reconciliation). A caller brackets
+ * each admitted operation with admit () and complete (), so only work done for admitted
+ * operations is counted, and at most once per UPDATE_NANOS the time per operation is folded
+ * into an exponentially weighted moving average. The estimate follows JIT warm-up, the backend
+ * AutoTune picked and the host's speed without tuning. Phase times are wall-clock, so on an
+ * oversubscribed host they include time spent descheduled and the estimate errs high.
+ *
+ **************************************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+class RlweAdmission implements RlweMetrics.Recorder {
+  static final long INITIAL_COST_NANOS = 100000;        // Until the first measurement
+  static final long UPDATE_NANOS = 100000000;
+  static final double ALPHA = 0.25;                     // Weight of the newest measurement
+
+  private final double cores;
+  private final long burstNanos;
+  private final LongSupplier clock;
+  private final RlweMetrics.Recorder delegate;
+
+  private final AtomicLong tat;
+  private final AtomicLong nextUpdate;
+  private final ThreadLocal<long[]> threadWork = ThreadLocal.withInitial (() -> new long[1]);
+  private final LongAdder work = new LongAdder ();
+  private final LongAdder operations = new LongAdder ();
+  private final LongAdder admitted = new LongAdder ();
+  private final LongAdder rejected = new LongAdder ();
+  private volatile long lastWork, lastOperations;
+  private volatile long cost = INITIAL_COST_NANOS;
+
+
+  // burstNanos is how far admissions may run ahead of the budget, in wall-clock time
+  RlweAdmission (double cores, long burstNanos, LongSupplier clock,
+		 RlweMetrics.Recorder delegate) {
+    if (cores <= 0)
+      throw new IllegalArgumentException ("Core budget must be positive");
+
+    this.cores = cores;
+    this.burstNanos = burstNanos;
+    this.clock = clock;
+    this.delegate = delegate;
+    tat = new AtomicLong (clock.getAsLong ());
+    nextUpdate = new AtomicLong (clock.getAsLong () + UPDATE_NANOS);
+  }
+
+
+  // Creates a controller and installs it as the metrics recorder in front of the current one
+  static RlweAdmission install (double cores, long burstNanos) {
+    RlweAdmission a = new RlweAdmission (cores, burstNanos, System::nanoTime,
+					 RlweMetrics.installed ());
+    RlweMetrics.install (a);
+    return a;
+  }
+
+
+  // Removes the controller from the recorder chain, restoring the one it was installed over
+  void uninstall () {
+    if (RlweMetrics.installed () == this)
+      RlweMetrics.install (delegate);
+  }
+
+
+  // Asks to run one operation. Returns 0 if it may go ahead, in which case the caller must call
+  // complete () on the same thread when it is done; otherwise returns the nanoseconds until one
+  // would be admitted, which callers can pass on as a retry hint.
+  public long admit () {
+    long now = clock.getAsLong (), charge = (long) (cost / cores), t;
+
+    if (now - nextUpdate.get () >= 0)
+      update (now);
+
+    do {
+      t = tat.get ();
+      if (t - now > burstNanos) {
+	rejected.increment ();
+	return t - now - burstNanos;
+      }
+    } while (!tat.compareAndSet (t, Math.max (t, now) + charge));
+
+    admitted.increment ();
+    threadWork.get()[0] = 0;
+    return 0;
+  }
+
+
+  // Ends an admitted operation, counting the phase time this thread has recorded since admit ()
+  public void complete () {
+    long[] w = threadWork.get ();
+
+    work.add (w[0]);
+    operations.increment ();
+    w[0] = 0;
+  }
+
+
+  private void update (long now) {
+    long due = nextUpdate.get (), w, n;
+
+    if (now - due < 0 || !nextUpdate.compareAndSet (due, now + UPDATE_NANOS))
+      return;                                   // Another thread is taking this sample
+
+    w = work.sum ();
+    n = operations.sum ();
+    if (n > lastOperations)
+      cost += (long) (ALPHA * ((double) (w - lastWork) / (n - lastOperations) - cost));
+    lastWork = w;
+    lastOperations = n;
+  }
+
+
+  public void recordPhase (RlweMetrics.Phase phase, long nanos) {
+    threadWork.get()[0] += nanos;
+    if (delegate != null)
+      delegate.recordPhase (phase, nanos);
+  }
+
+
+  public void increment (RlweMetrics.Counter counter) {
+    if (delegate != null)
+      delegate.increment (counter);
+  }
+
+
+  // Current estimate of the CPU time of one operation, in nanoseconds
+  long getCost () {
+    return cost;
+  }
+
+
+  long getAdmitted () {
+    return admitted.sum ();
+  }
+
+
+  long getRejected () {
+    return rejected.sum ();
+  }
+}
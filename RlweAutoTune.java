@@ -0,0 +1,189 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Chooses the RingElt backend once per process, the first time a RlweKeyExchange is created.
+ *
+ * Every candidate first runs a seeded key generation and agreement, plus an ntt/nttInv round trip,
+ * and must reproduce the scalar reference byte for byte; a candidate that does not is never
+ * selected. The survivors are then timed on the kernels they replace, alternating between
+ * candidates in short rounds within a fixed budget, and the fastest is installed. The native
+ * backend is only a candidate when its library has loaded (see Native); naming it when it has
+ * not, or naming an unknown backend, falls back to scalar and says so in the report. Candidates
+ * are checked and timed with a per-thread override (RingElt.withBackend), so exchanges running on
+ * other threads meanwhile stay on the backend already installed.
+ *
+ *   -Drlwe.backend=scalar|swar|native   skip tuning and use the named backend
+ *   -Drlwe.tune.budgetMs=n         total time spent timing candidates (default 100)
+ *   -Drlwe.tune.verbose=true       print the report to stderr
+ *
+ **************************************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+
+class AutoTune {
+  static final String BACKEND_PROPERTY = "rlwe.backend";
+  static final String BUDGET_PROPERTY = "rlwe.tune.budgetMs";
+  static final String VERBOSE_PROPERTY = "rlwe.tune.verbose";
+
+  static final String[] NAMES = {"scalar", "swar", "native"};
+  private static final int ROUNDS = 4;
+
+  private static boolean done;
+  private static String report;
+
+
+  static synchronized void run () {
+    String override = System.getProperty (BACKEND_PROPERTY);
+    byte requested = -1;
+
+    if (done)
+      return;
+    if (override != null) {
+      try {
+	requested = parse (override);
+      } catch (IllegalArgumentException e) {
+	// Reported below
+      }
+    }
+    done = true;                                // Before tuning, which creates key exchanges
+
+    if (override != null && requested < 0) {
+      report = "backend scalar (unknown backend " + override + " requested)";
+    } else if (override != null && !isAvailable (requested)) {
+      report = "backend scalar (native requested but unavailable: "
+	+ Native.unavailableReason () + ")";
+    } else if (override != null) {
+      RingElt.setBackend (requested);
+      report = "backend " + override + " (from -D" + BACKEND_PROPERTY + ")";
+    } else {
+      report = tune (Long.getLong (BUDGET_PROPERTY, 100) * 1000000);
+    }
+
+    if (Boolean.getBoolean (VERBOSE_PROPERTY))
+      System.err.println ("rlwe: " + report);
+  }
+
+
+  static synchronized String report () {
+    return report;
+  }
+
+
+  // False only for the native backend when its library has not loaded
+  static boolean isAvailable (byte backend) {
+    return backend != RingElt.NATIVE || Native.isAvailable ();
+  }
+
+
+  static byte parse (String name) {
+    for (byte b = 0; b < NAMES.length; b++)
+      if (NAMES[b].equalsIgnoreCase (name))
+	return b;
+    throw new IllegalArgumentException ("Unknown RLWE backend " + name);
+  }
+
+
+  private static String tune (long budgetNanos) {
+    int b, r, n = NAMES.length;
+    boolean[] valid = new boolean[n];
+    double[] best = new double[n];
+    byte winner = RingElt.SCALAR;
+    StringBuilder sb = new StringBuilder ();
+    byte[] reference = fingerprint (RingElt.SCALAR);
+
+    Arrays.fill (best, Double.MAX_VALUE);
+    for (b = 0; b < n; b++)
+      valid[b] = isAvailable ((byte) b) && Arrays.equals (fingerprint ((byte) b), reference);
+
+    for (r = 0; r < ROUNDS; r++)
+      for (b = 0; b < n; b++)
+	if (valid[b])
+	  best[b] = Math.min (best[b], time ((byte) b, budgetNanos / (ROUNDS * n)));
+
+    for (b = 0; b < n; b++) {
+      if (valid[b] && best[b] < best[winner])
+	winner = (byte) b;
+      sb.append (NAMES[b])
+	.append (valid[b] ? String.format (" %.0f ns", best[b])
+		 : isAvailable ((byte) b) ? " mismatch" : " unavailable")
+	.append (b + 1 < n ? ", " : "");
+    }
+
+    RingElt.setBackend (winner);
+    return "backend " + NAMES[winner] + " (" + sb + ")";
+  }
+
+
+  // Serialized public keys, reconciliation data and secrets of a seeded exchange, followed by an
+  // ntt/nttInv round trip of a random ring elt
+  static byte[] fingerprint (byte backend) {
+    return RingElt.withBackend (backend, AutoTune::fingerprint);
+  }
+
+
+  private static byte[] fingerprint () {
+    ByteArrayOutputStream out = new ByteArrayOutputStream ();
+    Random rnd = new Random (0x5eed);
+    long[] c = new long[Constants.N];
+    RlweKeyExchange kex = new RlweKeyExchange (new RingElt (Constants.A), Constants.ORDINARY,
+					       Constants.ORDINARY, rnd);
+    RlweKeyPair keysI = kex.generateKeyPair ();
+    RlweKeyPair keysR = kex.generateKeyPair ();
+    byte[][] response = kex.respAgreement (keysR.getPrivateKey (), keysI.getPublicKey ());
+
+    out.writeBytes (keysI.getPublicKey().serialize ());
+    out.writeBytes (keysR.getPublicKey().serialize ());
+    out.writeBytes (response[0]);
+    out.writeBytes (response[1]);
+    out.writeBytes (kex.initAgreement (keysI.getPrivateKey (), keysR.getPublicKey (),
+				       response[1]));
+
+    for (int i = 0; i < c.length; i++)
+      c[i] = rnd.nextInt (Constants.Q);
+    RingElt x = new RingElt (c);
+    x.ntt ();
+    writeCoeffs (out, x);
+    x.nttInv ();
+    writeCoeffs (out, x);
+
+    return out.toByteArray ();
+  }
+
+
+  private static void writeCoeffs (ByteArrayOutputStream out, RingElt x) {
+    ByteBuffer bb = ByteBuffer.allocate (Constants.N * Long.BYTES);
+
+    for (int i = 0; i < Constants.N; i++)
+      bb.putLong (x.getCoeff (i));
+    out.writeBytes (bb.array ());
+  }
+
+
+  // Average nanoseconds per pass over the kernels a backend replaces
+  private static double time (byte backend, long budgetNanos) {
+    return RingElt.withBackend (backend, () -> time (budgetNanos));
+  }
+
+
+  private static double time (long budgetNanos) {
+    RingElt v = new RingElt (Constants.A);
+    RingElt e = Sample.getSample (new Random (1));
+    long start = System.nanoTime (), elapsed, iterations = 0;
+
+    do {
+      v.ntt ();
+      v.pointwiseMult (e, v);
+      v.nttInv ();                              // Ends with a correction pass
+      v = v.ringAdd (e);
+      v.multBy3 ();
+      iterations++;
+    } while ((elapsed = System.nanoTime () - start) < budgetNanos);
+
+    return (double) elapsed / iterations;
+  }
+}
@@ -20,6 +20,13 @@ class Constants {
   protected static final int Q16 = 196624;
 
   protected static final int numRecDataBytes = 256;
+  protected static final int numPackedBytes = 1792;              // N coefficients at 14 bits each
+  protected static final int numKeyBytes = 1 + numPackedBytes;   // Domain byte, packed ring elt
+  protected static final int numCiphertextBytes = numKeyBytes + numRecDataBytes;
+  protected static final int numSecretBytes = 32;
+
+  protected static final int MIN_COMPRESSED_BITS = 1;            // Bits per compressed key coeff
+  protected static final int MAX_COMPRESSED_BITS = 13;
 
   protected static final byte FOURIER = 0;
   protected static final byte ORDINARY = 1;
@@ -0,0 +1,75 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * JDK Flight Recorder events for the key exchange. All are disabled by default and carry a
+ * threshold, so they cost nothing until a recording enables them, e.g.
+ *
+ *   jcmd <pid> JFR.start settings=profile +rlwe.RespAgreement#enabled=true
+ *
+ * cacheHit is set when the work a conversion would have done was already done: the peer's key
+ * arrived in the Fourier domain, or a key was already in the requested domain.
+ *
+ **************************************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+
+@Category ({"RLWE", "Key Exchange"})
+@Enabled (false)
+@StackTrace (false)
+@Threshold ("100 us")
+abstract class RlweEvent extends Event {
+  @Label ("Domain")
+  @Description ("0 = Fourier, 1 = Ordinary")
+  byte domain;
+
+  @Label ("Cache Hit")
+  boolean cacheHit;
+
+
+  void commit (byte dom, boolean hit) {
+    end ();
+    if (shouldCommit ()) {
+      domain = dom;
+      cacheHit = hit;
+      commit ();
+    }
+  }
+}
+
+
+@Name ("rlwe.RespAgreement")
+@Label ("RLWE Responder Agreement")
+class RespAgreementEvent extends RlweEvent {
+}
+
+
+@Name ("rlwe.InitAgreement")
+@Label ("RLWE Initiator Agreement")
+class InitAgreementEvent extends RlweEvent {
+  @Label ("Responders")
+  @Description ("Agreements completed together by initAgreementAll, otherwise 1; cacheHit means "
+		+ "every responder's key arrived in the Fourier domain")
+  int responders = 1;
+}
+
+
+@Name ("rlwe.KeyPair")
+@Label ("RLWE Key Pair Generation")
+class KeyPairEvent extends RlweEvent {
+}
+
+
+@Name ("rlwe.DomainConversion")
+@Label ("RLWE Domain Conversion")
+@Description ("domain is the domain converted to")
+class DomainConversionEvent extends RlweEvent {
+}
@@ -0,0 +1,177 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Monte-Carlo estimate of the reconciliation failure probability.
+ *
+ * Exchanges are run in fixed-size chunks on a fork/join pool. Each worker thread keeps its own
+ * RlweKeyExchange, and each chunk reseeds that exchange's generator from the base seed and the
+ * chunk number, so a campaign gives the same counts for the same seed regardless of thread count
+ * or scheduling. After every round a 95% Wilson score interval is reported, and the run stops
+ * once its half-width falls below the requested fraction of the estimate.
+ *
+ * With -compress, both public keys are sent through serializeCompressed () at the given number of
+ * bits per coefficient before they are used, to measure the failure rate of the lossy encoding
+ * against the unchanged reconciliation. Compression needs the ORDINARY transmit domain.
+ *
+ *   java rlwe.FailureEstimator [-seed n] [-precision p] [-max n] [-chunk n] [-threads n]
+ *                              [-domain fourier|ordinary] [-compress bits]
+ *
+ **************************************************************************************************/
+
+import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.LongStream;
+
+
+class FailureEstimator {
+  static final double Z95 = 1.959964;
+
+  private final long seed;
+  private final int chunkSize;
+  private final byte transmitDomain;
+  private final int keyBits;                    // Bits per compressed key coefficient, 0 for none
+  private final ThreadLocal<RlweKeyExchange> workers;
+  private final ThreadLocal<Random> generators;
+
+  long trials;
+  long failures;
+
+
+  FailureEstimator (long seed, int chunkSize, byte transmitDomain, int keyBits) {
+    if (keyBits != 0 && transmitDomain != Constants.ORDINARY)
+      throw new IllegalArgumentException ("Compressed keys must be in the ORDINARY domain");
+
+    this.seed = seed;
+    this.chunkSize = chunkSize;
+    this.transmitDomain = transmitDomain;
+    this.keyBits = keyBits;
+    generators = ThreadLocal.withInitial (Random::new);
+    workers = ThreadLocal.withInitial (() -> new RlweKeyExchange (new RingElt (Constants.A),
+								    Constants.ORDINARY,
+								    this.transmitDomain,
+								    generators.get ()));
+  }
+
+
+  // Runs one chunk of exchanges and returns the number of failures
+  long runChunk (long chunk) {
+    RlweKeyExchange kex = workers.get ();
+    RlweKeyPair keysI, keysR;
+    RlwePublicKey pubI, pubR;
+    byte[][] response;
+    long nfailures = 0;
+
+    generators.get().setSeed (mix (seed + chunk));
+
+    for (int i = 0; i < chunkSize; i++) {
+      keysI = kex.generateKeyPair ();
+      keysR = kex.generateKeyPair ();
+      pubI = keysI.getPublicKey ();
+      pubR = keysR.getPublicKey ();
+      if (keyBits != 0) {
+	pubI = new RlwePublicKey (pubI.serializeCompressed (keyBits));
+	pubR = new RlwePublicKey (pubR.serializeCompressed (keyBits));
+      }
+
+      response = kex.respAgreement (keysR.getPrivateKey (), pubI);
+      if (!Arrays.equals (response[0], kex.initAgreement (keysI.getPrivateKey (), pubR,
+							    response[1]))) {
+	RlweMetrics.count (RlweMetrics.Counter.MISMATCHES);
+	nfailures++;
+      }
+    }
+
+    return nfailures;
+  }
+
+
+  // Runs chunks [first, first + count) in parallel and adds them to the running totals
+  void runRound (ForkJoinPool pool, long first, int count) throws Exception {
+    failures += pool.submit (() -> LongStream.range (first, first + count).parallel ()
+			     .map (this::runChunk).sum ()).get ();
+    trials += (long) count * chunkSize;
+  }
+
+
+  double estimate () {
+    return (double) failures / trials;
+  }
+
+
+  // Bounds of the 95% Wilson score interval for the current counts
+  double[] interval () {
+    double n = trials, p = estimate (), z2 = Z95 * Z95;
+    double centre = (p + z2 / (2 * n)) / (1 + z2 / n);
+    double half = Z95 * Math.sqrt (p * (1 - p) / n + z2 / (4 * n * n)) / (1 + z2 / n);
+
+    if (failures == 0)
+      return new double[] {0, centre + half};
+    return new double[] {centre - half, centre + half};
+  }
+
+
+  static long mix (long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+
+  public static void main (String[] args) throws Exception {
+    long seed = 1, max = 1000000000L;
+    double precision = 0.1;
+    int i, bits = 0, chunk = 1000, threads = Runtime.getRuntime().availableProcessors ();
+    byte domain = Constants.ORDINARY;
+
+    for (i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+      case "-seed":      seed = Long.parseLong (args[i + 1]); break;
+      case "-precision": precision = Double.parseDouble (args[i + 1]); break;
+      case "-max":       max = Long.parseLong (args[i + 1]); break;
+      case "-chunk":     chunk = Integer.parseInt (args[i + 1]); break;
+      case "-threads":   threads = Integer.parseInt (args[i + 1]); break;
+      case "-domain":
+	domain = args[i + 1].equalsIgnoreCase ("fourier") ? Constants.FOURIER : Constants.ORDINARY;
+	break;
+      case "-compress":  bits = Integer.parseInt (args[i + 1]); break;
+      default:
+	throw new IllegalArgumentException ("Unknown option " + args[i]);
+      }
+    }
+
+    FailureEstimator est = new FailureEstimator (seed, chunk, domain, bits);
+    ForkJoinPool pool = new ForkJoinPool (threads);
+    int chunksPerRound = threads * 8;
+    long next = 0, startTime = System.nanoTime ();
+    double[] ci;
+    double secs;
+
+    System.out.printf ("Estimating failure rate: seed %d, %d threads, chunks of %d%s%n",
+		       seed, threads, chunk, bits == 0 ? ""
+		       : String.format (", keys compressed to %d bits (%d bytes)", bits,
+					RlwePublicKey.compressedBytes (bits)));
+
+    try {
+      while (est.trials < max) {
+	est.runRound (pool, next, chunksPerRound);
+	next += chunksPerRound;
+
+	ci = est.interval ();
+	secs = (System.nanoTime () - startTime) / 1e9;
+	System.out.printf ("%,d exchanges, %d failures, p = %.3e, 95%% CI [%.3e, %.3e], %.0f/s%n",
+			   est.trials, est.failures, est.estimate (), ci[0], ci[1],
+			   est.trials / secs);
+
+	if (est.failures > 0 && (ci[1] - ci[0]) / 2 <= precision * est.estimate ())
+	  break;
+      }
+    } finally {
+      pool.shutdown ();
+    }
+
+    if (est.failures == 0)
+      System.out.printf ("No failures; p < %.3e at 95%% confidence%n", 3.0 / est.trials);
+  }
+}
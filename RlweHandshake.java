@@ -0,0 +1,546 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Framed wire protocol for running RLWE key exchanges over NIO channels. Each frame is
+ *
+ *       type (1 byte) | session id (4 bytes) | payload length (4 bytes) | payload
+ *
+ * An INIT frame carries the initiator's serialized public key; a RESP frame carries the
+ * responder's serialized public key followed by the reconciliation data. Session ids are chosen
+ * by the initiator, so any number of handshakes can be in flight on one connection.
+ *
+ * A HELLO frame carries one byte of capability flags and is sent at most once per connection in
+ * each direction: the initiator sends it ahead of its first INIT, and a responder answers it with
+ * its own. Once both sides have advertised CAP_FOURIER, the initiator generates its keys in the
+ * Fourier domain and the responder replies in whatever domain the INIT key arrived in, so neither
+ * side converts keys on send or receive. The domain byte of each serialized key says which domain
+ * it is in, so sessions started before the responder's HELLO arrives simply stay ORDINARY, and an
+ * initiator built without negotiation never sends HELLO and is understood by any responder. The
+ * domain of each session that exchanged keys is recorded and available from getDomain ().
+ *
+ * A returning initiator can skip the exchange with a RESUME frame carrying the id of a
+ * ResumptionTicket (16 bytes) and a fresh nonce (32 bytes). A responder with a session cache
+ * answers with a RESUMED frame carrying its own nonce, and both derive the session secret from the
+ * cached resumption secret and the nonces. An empty RESUMED frame means the ticket is unknown or
+ * expired; the initiator then runs a full exchange under the same session id. The ticket for any
+ * completed session, full or resumed, is ResumptionTicket.derive (secret). A resumed session sends
+ * no key, so it has no domain and getDomain () reports -1 for it.
+ *
+ * A responder with an RlweAdmission controller answers an INIT it cannot afford with a BUSY frame
+ * carrying a retry hint in microseconds (4 bytes), before doing any lattice work. The initiator
+ * drops the session and reports the hint from getRetryAfter ().
+ *
+ * startHybrid () runs a hybrid X25519 + RLWE exchange (see RlweHybrid) instead: a HYBRID_INIT
+ * frame carries the hybrid init message and a HYBRID_RESP frame the hybrid response, so each side
+ * still sends one frame and the session secret is derived from both halves. Hybrid sessions are
+ * admitted, cached for resumption and reported like any other, in the exchange's transmit domain.
+ *
+ * Frames are decoded incrementally from whatever bytes the channel has available and written with
+ * gathering writes, so the same code works on blocking and non-blocking channels. When a write
+ * cannot complete, the remainder is queued; callers using a Selector should register for OP_WRITE
+ * while hasPendingWrites () is true and call flush () when the channel becomes writable.
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+
+abstract class RlweHandshake {
+  static final byte INIT = 1;
+  static final byte RESP = 2;
+  static final byte HELLO = 3;
+  static final byte RESUME = 4;
+  static final byte RESUMED = 5;
+  static final byte BUSY = 6;
+  static final byte HYBRID_INIT = 7;
+  static final byte HYBRID_RESP = 8;
+
+  static final int NONCE_BYTES = 32;
+
+  static final byte CAP_FOURIER = 0x01;         // Keys may be sent in the Fourier domain
+
+  static final int HEADER_BYTES = 9;
+  static final int MAX_PAYLOAD_BYTES = RlweHybrid.RESP_BYTES;    // HYBRID_RESP, the largest frame
+
+  protected final RlweKeyExchange kex;
+  private final GatheringByteChannel out;
+  private final ByteBuffer inBuf;
+  private final ArrayDeque<ByteBuffer[]> outQueue;
+  protected final HashMap<Integer, byte[]> secrets;
+  protected final HashMap<Integer, Byte> domains;
+  protected final byte capabilities;
+  protected byte peerCapabilities;
+  protected boolean helloSent;
+  protected final SecureRandom nonces = new SecureRandom ();
+  private RlweHybrid hybrid;
+
+
+  RlweHandshake (RlweKeyExchange kex, GatheringByteChannel out, byte capabilities) {
+    this.kex = kex;
+    this.out = out;
+    this.capabilities = capabilities;
+    inBuf = ByteBuffer.allocate (HEADER_BYTES + MAX_PAYLOAD_BYTES);
+    outQueue = new ArrayDeque<ByteBuffer[]> ();
+    secrets = new HashMap<Integer, byte[]> ();
+    domains = new HashMap<Integer, Byte> ();
+  }
+
+
+  // Reads available bytes and handles every complete frame. Returns the number of frames handled,
+  // or -1 once the channel reaches end of stream.
+  public int read (ReadableByteChannel in) throws IOException {
+    int n, frames = 0;
+
+    do {
+      n = in.read (inBuf);
+      inBuf.flip ();
+      frames += decode ();
+      inBuf.compact ();
+    } while (n > 0 && frames == 0);
+
+    if (n < 0 && frames == 0)
+      return -1;
+    return frames;
+  }
+
+
+  private int decode () throws IOException {
+    int frames = 0, start, session, length;
+    byte type;
+
+    while (inBuf.remaining () >= HEADER_BYTES) {
+      start = inBuf.position ();
+      type = inBuf.get (start);
+      session = inBuf.getInt (start + 1);
+      length = inBuf.getInt (start + 5);
+
+      if (length < 0 || length > MAX_PAYLOAD_BYTES)
+	throw new ProtocolException ("Bad frame length " + length);
+      if (inBuf.remaining () < HEADER_BYTES + length)
+	break;
+
+      if (type == HELLO) {
+	checkLength (type, length, 1);
+	handleHello (inBuf.get (start + HEADER_BYTES));
+      } else {
+	handleFrame (type, session, inBuf.array (), inBuf.arrayOffset () + start + HEADER_BYTES,
+		     length);
+      }
+      inBuf.position (start + HEADER_BYTES + length);
+      frames++;
+    }
+
+    return frames;
+  }
+
+
+  abstract void handleFrame (byte type, int session, byte[] buf, int offset, int length)
+    throws IOException;
+
+
+  private void handleHello (byte peerCaps) throws IOException {
+    peerCapabilities = peerCaps;
+    if (!helloSent)
+      sendHello ();
+  }
+
+
+  protected void sendHello () throws IOException {
+    helloSent = true;
+    send (header (HELLO, 0, 1), ByteBuffer.wrap (new byte[] {capabilities}));
+  }
+
+
+  // True once both sides have advertised the capability
+  protected boolean negotiated (byte cap) {
+    return (capabilities & peerCapabilities & cap) != 0;
+  }
+
+
+  protected static ByteBuffer header (byte type, int session, int length) {
+    ByteBuffer h = ByteBuffer.allocate (HEADER_BYTES);
+    h.put (type).putInt (session).putInt (length).flip ();
+    return h;
+  }
+
+
+  protected void send (ByteBuffer... frame) throws IOException {
+    outQueue.add (frame);
+    flush ();
+  }
+
+
+  // Writes as much queued output as the channel accepts. Returns true when nothing is left.
+  public boolean flush () throws IOException {
+    ByteBuffer[] frame;
+
+    while ((frame = outQueue.peek ()) != null) {
+      out.write (frame);
+      if (frame[frame.length - 1].hasRemaining ())
+	return false;
+      outQueue.poll ();
+    }
+
+    return true;
+  }
+
+
+  public boolean hasPendingWrites () {
+    return !outQueue.isEmpty ();
+  }
+
+
+  // Returns and forgets the shared secret for a completed session, or null if it is not done yet
+  public byte[] getSecret (int session) {
+    domains.remove (session);
+    return secrets.remove (session);
+  }
+
+
+  // The domain this side's key was sent in, or -1 for an unknown, collected or resumed session
+  public byte getDomain (int session) {
+    Byte dom = domains.get (session);
+    return dom == null ? -1 : dom;
+  }
+
+
+  public boolean isComplete (int session) {
+    return secrets.containsKey (session);
+  }
+
+
+  // Created on first use, so connections that never run a hybrid session never load X25519
+  protected RlweHybrid hybrid () {
+    if (hybrid == null)
+      hybrid = new RlweHybrid (kex);
+    return hybrid;
+  }
+
+
+  protected static void checkLength (byte type, int length, int expected)
+    throws ProtocolException {
+    if (length != expected)
+      throw new ProtocolException ("Frame type " + type + " has length " + length);
+  }
+
+
+  protected static RlwePublicKey publicKey (byte[] buf, int offset) throws ProtocolException {
+    try {
+      return new RlwePublicKey (buf, offset);
+    } catch (IllegalArgumentException e) {
+      throw new ProtocolException (e.getMessage ());
+    }
+  }
+}
+
+
+class RlweInitiator extends RlweHandshake {
+  private final HashMap<Integer, RlwePrivateKey> pending;
+  private final HashMap<Integer, HybridKeyPair> pendingHybrid;
+  private final HashMap<Integer, Resumption> resuming;
+  private final HashMap<Integer, Integer> retryAfter;
+  private int nextSession;
+
+
+  private static class Resumption {
+    final ResumptionTicket ticket;
+    final byte[] nonce;
+
+
+    Resumption (ResumptionTicket ticket, byte[] nonce) {
+      this.ticket = ticket;
+      this.nonce = nonce;
+    }
+  }
+
+
+  RlweInitiator (RlweKeyExchange kex, GatheringByteChannel out, byte capabilities) {
+    super (kex, out, capabilities);
+    pending = new HashMap<Integer, RlwePrivateKey> ();
+    pendingHybrid = new HashMap<Integer, HybridKeyPair> ();
+    resuming = new HashMap<Integer, Resumption> ();
+    retryAfter = new HashMap<Integer, Integer> ();
+  }
+
+
+  // Negotiates CAP_FOURIER
+  RlweInitiator (RlweKeyExchange kex, GatheringByteChannel out) {
+    this (kex, out, CAP_FOURIER);
+  }
+
+
+  // Generates a key pair, sends it in an INIT frame and returns the new session id. Keys are in
+  // the Fourier domain once it has been negotiated, otherwise in the exchange's transmit domain.
+  public int start () throws IOException {
+    int session = nextSession++;
+
+    if (!helloSent && capabilities != 0)
+      sendHello ();
+
+    sendInit (session);
+    return session;
+  }
+
+
+  private void sendInit (int session) throws IOException {
+    byte domain = negotiated (CAP_FOURIER) ? Constants.FOURIER : kex.getTransmitDomain ();
+    RlweKeyPair keys = kex.generateKeyPair (domain);
+
+    pending.put (session, keys.getPrivateKey ());
+    domains.put (session, domain);
+    send (header (INIT, session, Constants.numKeyBytes),
+	  ByteBuffer.wrap (keys.getPublicKey().serialize ()));
+  }
+
+
+  // Generates a hybrid key pair, sends its init message in a HYBRID_INIT frame and returns the
+  // new session id
+  public int startHybrid () throws IOException {
+    int session = nextSession++;
+    HybridKeyPair keys;
+
+    try {
+      keys = hybrid().generateKeyPair ();
+    } catch (GeneralSecurityException e) {
+      throw new IOException ("Cannot generate an X25519 key pair", e);
+    }
+
+    pendingHybrid.put (session, keys);
+    domains.put (session, kex.getTransmitDomain ());
+    send (header (HYBRID_INIT, session, RlweHybrid.INIT_BYTES), ByteBuffer.wrap (keys.message));
+    return session;
+  }
+
+
+  // Asks to resume from a ticket and returns the new session id. If the responder no longer has
+  // the ticket, a full exchange follows under the same id, so the caller sees no difference.
+  // A ticket must not be used twice.
+  public int resume (ResumptionTicket ticket) throws IOException {
+    int session = nextSession++;
+    byte[] nonce = new byte[NONCE_BYTES];
+
+    nonces.nextBytes (nonce);
+    resuming.put (session, new Resumption (ticket, nonce));
+    send (header (RESUME, session, ResumptionTicket.ID_BYTES + NONCE_BYTES),
+	  ByteBuffer.wrap (ticket.id), ByteBuffer.wrap (nonce));
+
+    return session;
+  }
+
+
+  public int pendingSessions () {
+    return pending.size () + pendingHybrid.size () + resuming.size ();
+  }
+
+
+  // Returns and forgets the responder's retry hint in microseconds if it turned the session away
+  // with BUSY, or -1 if it did not
+  public int getRetryAfter (int session) {
+    Integer micros = retryAfter.remove (session);
+    return micros == null ? -1 : micros;
+  }
+
+
+  void handleFrame (byte type, int session, byte[] buf, int offset, int length)
+    throws IOException {
+    if (type == RESUMED) {
+      handleResumed (session, buf, offset, length);
+      return;
+    }
+    if (type == HYBRID_RESP) {
+      handleHybridResp (session, buf, offset, length);
+      return;
+    }
+    if (type == BUSY) {
+      checkLength (type, length, 4);
+      if (pending.remove (session) == null && pendingHybrid.remove (session) == null)
+	throw new ProtocolException ("Unknown session " + session);
+      domains.remove (session);
+      retryAfter.put (session, ByteBuffer.wrap(buf, offset, 4).getInt ());
+      return;
+    }
+    if (type != RESP)
+      throw new ProtocolException ("Unexpected frame type " + type);
+    checkLength (type, length, Constants.numCiphertextBytes);
+
+    RlwePrivateKey kI = pending.remove (session);
+    if (kI == null)
+      throw new ProtocolException ("Unknown session " + session);
+
+    RlwePublicKey kR = publicKey (buf, offset);
+    secrets.put (session, kex.initAgreement (kI, kR, buf, offset + Constants.numKeyBytes));
+  }
+
+
+  private void handleHybridResp (int session, byte[] buf, int offset, int length)
+    throws IOException {
+    checkLength (HYBRID_RESP, length, RlweHybrid.RESP_BYTES);
+
+    HybridKeyPair keys = pendingHybrid.remove (session);
+    if (keys == null)
+      throw new ProtocolException ("Unknown session " + session);
+
+    try {
+      secrets.put (session, hybrid().finish (keys, Arrays.copyOfRange (buf, offset,
+								       offset + length)));
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      throw new ProtocolException ("Bad hybrid response: " + e.getMessage ());
+    }
+  }
+
+
+  private void handleResumed (int session, byte[] buf, int offset, int length)
+    throws IOException {
+    Resumption r = resuming.remove (session);
+
+    if (r == null)
+      throw new ProtocolException ("Unknown session " + session);
+    if (length == 0) {
+      sendInit (session);                       // Rejected: fall back to a full exchange
+      return;
+    }
+    checkLength (RESUMED, length, NONCE_BYTES);
+
+    secrets.put (session, ResumptionTicket.resume (r.ticket.secret, r.ticket.id, r.nonce,
+						   Arrays.copyOfRange (buf, offset,
+								       offset + NONCE_BYTES)));
+  }
+}
+
+
+class RlweResponder extends RlweHandshake {
+  private final RlweSessionCache cache;
+  private final RlweAdmission admission;
+
+
+  // With a null cache every RESUME is rejected and no tickets are kept; with a null admission
+  // controller every INIT is answered
+  RlweResponder (RlweKeyExchange kex, GatheringByteChannel out, byte capabilities,
+		 RlweSessionCache cache, RlweAdmission admission) {
+    super (kex, out, capabilities);
+    this.cache = cache;
+    this.admission = admission;
+  }
+
+
+  RlweResponder (RlweKeyExchange kex, GatheringByteChannel out, byte capabilities,
+		 RlweSessionCache cache) {
+    this (kex, out, capabilities, cache, null);
+  }
+
+
+  RlweResponder (RlweKeyExchange kex, GatheringByteChannel out, byte capabilities) {
+    this (kex, out, capabilities, null);
+  }
+
+
+  // Answers with CAP_FOURIER
+  RlweResponder (RlweKeyExchange kex, GatheringByteChannel out) {
+    this (kex, out, CAP_FOURIER);
+  }
+
+
+  void handleFrame (byte type, int session, byte[] buf, int offset, int length)
+    throws IOException {
+    if (type == RESUME) {
+      handleResume (session, buf, offset, length);
+      return;
+    }
+    if (type == HYBRID_INIT) {
+      handleHybridInit (session, buf, offset, length);
+      return;
+    }
+    if (type != INIT)
+      throw new ProtocolException ("Unexpected frame type " + type);
+    checkLength (type, length, Constants.numKeyBytes);
+    if (turnAway (session))
+      return;
+
+    // Reply in the Fourier domain when the initiator sent its key that way and we advertise it
+    RlwePublicKey kI = publicKey (buf, offset);
+    byte domain = kI.getDomain () == Constants.FOURIER && (capabilities & CAP_FOURIER) != 0
+      ? Constants.FOURIER : kex.getTransmitDomain ();
+    RlweKeyPair keys = kex.generateKeyPair (domain);
+    byte[][] response = kex.respAgreement (keys.getPrivateKey (), kI);
+    if (admission != null)
+      admission.complete ();
+    secrets.put (session, response[0]);
+    domains.put (session, domain);
+    if (cache != null)
+      cache.put (ResumptionTicket.derive (response[0]));
+
+    send (header (RESP, session, Constants.numCiphertextBytes),
+	  ByteBuffer.wrap (keys.getPublicKey().serialize ()), ByteBuffer.wrap (response[1]));
+  }
+
+
+  // Answers with BUSY and returns true if the admission controller cannot afford the session
+  private boolean turnAway (int session) throws IOException {
+    long wait = admission == null ? 0 : admission.admit ();
+
+    if (wait > 0)
+      send (header (BUSY, session, 4),
+	    ByteBuffer.allocate(4).putInt (0, (int) Math.min (Integer.MAX_VALUE, wait / 1000 + 1)));
+    return wait > 0;
+  }
+
+
+  private void handleHybridInit (int session, byte[] buf, int offset, int length)
+    throws IOException {
+    byte[][] response;
+
+    checkLength (HYBRID_INIT, length, RlweHybrid.INIT_BYTES);
+    if (turnAway (session))
+      return;
+
+    try {
+      response = hybrid().respond (Arrays.copyOfRange (buf, offset, offset + length));
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      throw new ProtocolException ("Bad hybrid init: " + e.getMessage ());
+    }
+    if (admission != null)
+      admission.complete ();
+    secrets.put (session, response[0]);
+    domains.put (session, kex.getTransmitDomain ());
+    if (cache != null)
+      cache.put (ResumptionTicket.derive (response[0]));
+
+    send (header (HYBRID_RESP, session, RlweHybrid.RESP_BYTES), ByteBuffer.wrap (response[1]));
+  }
+
+
+  private void handleResume (int session, byte[] buf, int offset, int length)
+    throws IOException {
+    checkLength (RESUME, length, ResumptionTicket.ID_BYTES + NONCE_BYTES);
+
+    byte[] id = Arrays.copyOfRange (buf, offset, offset + ResumptionTicket.ID_BYTES);
+    byte[] resumption = cache == null ? null : cache.take (id);
+    byte[] nonce, secret;
+
+    if (resumption == null) {
+      send (header (RESUMED, session, 0));
+      return;
+    }
+
+    nonce = new byte[NONCE_BYTES];
+    nonces.nextBytes (nonce);
+    secret = ResumptionTicket.resume (resumption, id,
+				      Arrays.copyOfRange (buf, offset + ResumptionTicket.ID_BYTES,
+							  offset + length), nonce);
+    Arrays.fill (resumption, (byte) 0);
+
+    secrets.put (session, secret);
+    cache.put (ResumptionTicket.derive (secret));
+    send (header (RESUMED, session, NONCE_BYTES), ByteBuffer.wrap (nonce));
+  }
+}
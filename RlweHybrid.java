@@ -0,0 +1,333 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Hybrid key exchange: X25519 from the JDK and RLWE run side by side, and the shared secret is
+ * derived from both, so it stays secret as long as either problem is hard.
+ *
+ * Each step hands the X25519 half to an executor while the calling thread does the RLWE half, so
+ * the two can overlap when the executor has a core to run on; with no spare core a step costs
+ * their sum. The messages carry both public values:
+ *
+ *   init:     X25519 public (32 bytes) | RLWE public key (as serialized)
+ *   response: X25519 public (32 bytes) | RLWE ciphertext (public key and reconciliation data)
+ *
+ * and RlweHandshake sends each in one HYBRID_INIT or HYBRID_RESP frame. The secret is HKDF-SHA256
+ * over the X25519 secret followed by the RLWE secret, with the hash of both messages in the info
+ * string so that it is bound to the transcript.
+ *
+ * The shared pool has one thread per processor and a bounded queue. When the queue is full, as in
+ * a reconnect storm, the X25519 half runs on the calling thread instead, so a step costs the sum
+ * of the two halves rather than starting another thread.
+ *
+ *   java rlwe.RlweHybrid [iterations]     compares the hybrid with its X25519 half run inline
+ *                                         and on the shared pool
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+class HybridKeyPair {
+  final KeyPair ecdh;
+  final RlweKeyPair rlwe;
+  final byte[] message;                         // The init message carrying both public values
+
+
+  HybridKeyPair (KeyPair ecdh, RlweKeyPair rlwe) {
+    this.ecdh = ecdh;
+    this.rlwe = rlwe;
+    message = new byte[RlweHybrid.INIT_BYTES];
+    RlweHybrid.encodeX25519 (ecdh.getPublic (), message);
+    rlwe.getPublicKey().serialize (message, RlweHybrid.X25519_BYTES);
+  }
+
+
+  public byte[] getMessage () {
+    return message.clone ();
+  }
+}
+
+
+class RlweHybrid {
+  static final int X25519_BYTES = 32;
+  static final int INIT_BYTES = X25519_BYTES + Constants.numKeyBytes;
+  static final int RESP_BYTES = X25519_BYTES + Constants.numCiphertextBytes;
+
+  private static final byte[] INFO = "rlwe x25519 hybrid".getBytes (StandardCharsets.US_ASCII);
+  private static final int QUEUE_PER_THREAD = 16;
+  private static final ExecutorService SHARED = sharedPool (Runtime.getRuntime()
+							    .availableProcessors ());
+
+  private final RlweKeyExchange kex;
+  private final Executor executor;
+
+
+  RlweHybrid (RlweKeyExchange kex, Executor executor) {
+    this.kex = kex;
+    this.executor = executor;
+  }
+
+
+  // Runs the X25519 halves on a shared pool of daemon threads
+  RlweHybrid (RlweKeyExchange kex) {
+    this (kex, SHARED);
+  }
+
+
+  static ThreadPoolExecutor sharedPool (int threads) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor (
+      threads, threads, 30, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable> (QUEUE_PER_THREAD * threads), r -> {
+	Thread t = new Thread (r, "rlwe-x25519");
+	t.setDaemon (true);
+	return t;
+      }, new ThreadPoolExecutor.CallerRunsPolicy ());
+
+    pool.allowCoreThreadTimeOut (true);
+    return pool;
+  }
+
+
+  public HybridKeyPair generateKeyPair () throws GeneralSecurityException {
+    FutureTask<KeyPair> ecdh = fork (() -> KeyPairGenerator.getInstance ("X25519")
+				     .generateKeyPair ());
+    RlweKeyPair rlwe = kex.generateKeyPair ();
+
+    return new HybridKeyPair (join (ecdh), rlwe);
+  }
+
+
+  // Responds to an init message. Returns [shared secret, response message].
+  public byte[][] respond (byte[] init) throws GeneralSecurityException {
+    if (init.length != INIT_BYTES)
+      throw new IllegalArgumentException ("Init message must be " + INIT_BYTES + " bytes");
+
+    FutureTask<byte[][]> ecdh = fork (() -> {
+	KeyPair keys = KeyPairGenerator.getInstance("X25519").generateKeyPair ();
+	byte[] pub = new byte[X25519_BYTES];
+	encodeX25519 (keys.getPublic (), pub);
+	return new byte[][] {agree (keys.getPrivate (), init), pub};
+      });
+    byte[][] rlwe = kex.encapsulate (new RlwePublicKey (init, X25519_BYTES));
+    byte[][] x = join (ecdh);
+
+    byte[] resp = new byte[RESP_BYTES];
+    System.arraycopy (x[1], 0, resp, 0, X25519_BYTES);
+    System.arraycopy (rlwe[1], 0, resp, X25519_BYTES, Constants.numCiphertextBytes);
+
+    return new byte[][] {combine (x[0], rlwe[0], init, resp), resp};
+  }
+
+
+  // Completes the exchange for the initiator and returns the shared secret
+  public byte[] finish (HybridKeyPair keys, byte[] resp) throws GeneralSecurityException {
+    if (resp.length != RESP_BYTES)
+      throw new IllegalArgumentException ("Response message must be " + RESP_BYTES + " bytes");
+
+    FutureTask<byte[]> ecdh = fork (() -> agree (keys.ecdh.getPrivate (), resp));
+    byte[] rlwe = kex.initAgreement (keys.rlwe.getPrivateKey (),
+				     new RlwePublicKey (resp, X25519_BYTES), resp,
+				     X25519_BYTES + Constants.numKeyBytes);
+
+    return combine (join (ecdh), rlwe, keys.message, resp);
+  }
+
+
+  private <T> FutureTask<T> fork (Callable<T> task) {
+    FutureTask<T> f = new FutureTask<T> (task);
+    executor.execute (f);
+    return f;
+  }
+
+
+  private static <T> T join (FutureTask<T> f) throws GeneralSecurityException {
+    try {
+      return f.get ();
+    } catch (ExecutionException e) {
+      if (e.getCause () instanceof GeneralSecurityException)
+	throw (GeneralSecurityException) e.getCause ();
+      throw new IllegalStateException (e.getCause ());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt ();
+      throw new IllegalStateException (e);
+    }
+  }
+
+
+  // X25519 agreement with the peer's public value in msg[0...31]
+  private static byte[] agree (PrivateKey mine, byte[] msg) throws GeneralSecurityException {
+    KeyAgreement ka = KeyAgreement.getInstance ("X25519");
+    ka.init (mine);
+    ka.doPhase (decodeX25519 (msg), true);
+    return ka.generateSecret ();
+  }
+
+
+  // Writes the u-coordinate as 32 little-endian bytes (RFC 7748)
+  static void encodeX25519 (PublicKey key, byte[] out) {
+    byte[] u = ((XECPublicKey) key).getU().toByteArray ();
+
+    for (int i = 0; i < X25519_BYTES && i < u.length; i++)
+      out[i] = u[u.length - 1 - i];
+  }
+
+
+  static PublicKey decodeX25519 (byte[] in) throws GeneralSecurityException {
+    byte[] u = new byte[X25519_BYTES];
+
+    for (int i = 0; i < X25519_BYTES; i++)
+      u[i] = in[X25519_BYTES - 1 - i];
+    u[0] &= 0x7f;                               // The top bit is ignored (RFC 7748, section 5)
+
+    return KeyFactory.getInstance ("XDH")
+      .generatePublic (new XECPublicKeySpec (NamedParameterSpec.X25519, new BigInteger (1, u)));
+  }
+
+
+  private static byte[] combine (byte[] ecdh, byte[] rlwe, byte[] init, byte[] resp)
+    throws GeneralSecurityException {
+    MessageDigest sha = MessageDigest.getInstance ("SHA-256");
+    byte[] ikm = new byte[ecdh.length + rlwe.length];
+    byte[] info, key;
+
+    sha.update (init);
+    info = Arrays.copyOf (INFO, INFO.length + 32);
+    System.arraycopy (sha.digest (resp), 0, info, INFO.length, 32);
+
+    System.arraycopy (ecdh, 0, ikm, 0, ecdh.length);
+    System.arraycopy (rlwe, 0, ikm, ecdh.length, rlwe.length);
+    key = Hkdf.derive (null, ikm, info, Constants.numSecretBytes);
+
+    Arrays.fill (ikm, (byte) 0);
+    Arrays.fill (ecdh, (byte) 0);
+    Arrays.fill (rlwe, (byte) 0);
+    return key;
+  }
+
+
+  public static void main (String[] args) throws Exception {
+    int i, iterations = args.length > 0 ? Integer.parseInt (args[0]) : 2000;
+    RlweKeyExchange kex = new RlweKeyExchange ();
+    RlweHybrid inline = new RlweHybrid (kex, Runnable::run);
+    RlweHybrid hybrid = new RlweHybrid (kex);
+    Runnable[] runs = {
+      () -> rlweOnly (kex), () -> x25519Only (), () -> hybridOnce (inline),
+      () -> hybridOnce (hybrid)
+    };
+    String[] names = {"RLWE", "X25519", "sequential", "concurrent"};
+    long start;
+
+    System.out.printf ("Full exchange latency, %d iterations, %d CPUs%n", iterations,
+		       Runtime.getRuntime().availableProcessors ());
+
+    for (int r = 0; r < runs.length; r++) {
+      for (i = 0; i < iterations; i++)
+	runs[r].run ();                         // Warm-up
+      start = System.nanoTime ();
+      for (i = 0; i < iterations; i++)
+	runs[r].run ();
+      System.out.printf ("  %-11s %6.1f us%n", names[r],
+			 (System.nanoTime () - start) / 1e3 / iterations);
+    }
+  }
+
+
+  private static void rlweOnly (RlweKeyExchange kex) {
+    RlweKeyPair keys = kex.generateKeyPair ();
+    byte[][] resp = kex.encapsulate (keys.getPublicKey ());
+    kex.decapsulate (keys.getPrivateKey (), resp[1]);
+  }
+
+
+  private static void x25519Only () {
+    try {
+      KeyPair a = KeyPairGenerator.getInstance("X25519").generateKeyPair ();
+      KeyPair b = KeyPairGenerator.getInstance("X25519").generateKeyPair ();
+      byte[] msg = new byte[X25519_BYTES];
+      encodeX25519 (a.getPublic (), msg);
+      agree (b.getPrivate (), msg);
+      encodeX25519 (b.getPublic (), msg);
+      agree (a.getPrivate (), msg);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+
+  private static void hybridOnce (RlweHybrid hybrid) {
+    try {
+      HybridKeyPair keys = hybrid.generateKeyPair ();
+      byte[][] resp = hybrid.respond (keys.message);
+      if (!Arrays.equals (resp[0], hybrid.finish (keys, resp[1])))
+	throw new IllegalStateException ("Hybrid secrets differ");
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+}
+
+
+class Hkdf {
+  // HKDF with HMAC-SHA256 (RFC 5869). A null salt means HashLen zero bytes.
+
+  static byte[] extract (byte[] salt, byte[] ikm) throws GeneralSecurityException {
+    Mac mac = Mac.getInstance ("HmacSHA256");
+    mac.init (new SecretKeySpec (salt == null ? new byte[32] : salt, "HmacSHA256"));
+    return mac.doFinal (ikm);
+  }
+
+
+  static byte[] expand (byte[] prk, byte[] info, int length) throws GeneralSecurityException {
+    Mac mac = Mac.getInstance ("HmacSHA256");
+    byte[] out = new byte[length], t = new byte[0];
+    int pos = 0;
+
+    if (length > 255 * 32)
+      throw new IllegalArgumentException ("HKDF output too long");
+
+    mac.init (new SecretKeySpec (prk, "HmacSHA256"));
+    for (byte i = 1; pos < length; i++) {
+      mac.update (t);
+      mac.update (info);
+      mac.update (i);
+      t = mac.doFinal ();
+      System.arraycopy (t, 0, out, pos, Math.min (t.length, length - pos));
+      pos += t.length;
+    }
+
+    return out;
+  }
+
+
+  static byte[] derive (byte[] salt, byte[] ikm, byte[] info, int length)
+    throws GeneralSecurityException {
+    byte[] prk = extract (salt, ikm);
+    byte[] out = expand (prk, info, length);
+    Arrays.fill (prk, (byte) 0);
+    return out;
+  }
+}
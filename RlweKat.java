@@ -0,0 +1,309 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Binary known-answer vectors, and a verifier that checks every vector on all cores, in both
+ * transmit domains and on every RingElt backend.
+ *
+ * A KAT file is a 32-byte header (magic "RKAT", version, vector count, record size) followed by
+ * fixed-size records, one per exchange:
+ *
+ *   seed (8) | sI eI sR eR eprime (1024 signed bytes each) | pubI pubR (ORDINARY, serialized)
+ *            | reconciliation data (256) | shared secret (32)
+ *
+ * Each vector is the exchange a RlweKeyExchange seeded with new Random (seed) produces. The
+ * verifier checks it two ways: it replays the seeded exchange and compares every output, and it
+ * rebuilds both public keys and the initiator's secret from the stored samples alone, so a fault
+ * in sampling and a fault in the ring arithmetic are told apart. Files are generated with the
+ * scalar backend, which is the reference.
+ *
+ *   java rlwe.Kat generate <file> [-n count] [-seed s]
+ *   java rlwe.Kat verify <file> [-threads n] [-backend name]
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+
+class Kat {
+  static final int MAGIC = 0x524b4154;          // "RKAT"
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 32;
+
+  static final int SEED = 0;
+  static final int SAMPLES = SEED + 8;          // sI, eI, sR, eR, eprime
+  static final int PUB_I = SAMPLES + 5 * Constants.N;
+  static final int PUB_R = PUB_I + Constants.numKeyBytes;
+  static final int REC = PUB_R + Constants.numKeyBytes;
+  static final int SECRET = REC + Constants.numRecDataBytes;
+  static final int RECORD_BYTES = SECRET + Constants.numSecretBytes;
+
+  // Most vectors a file can hold, since it is read and written through a single mapping
+  static final int MAX_COUNT = (Integer.MAX_VALUE - HEADER_BYTES) / RECORD_BYTES;
+
+  // Failure kinds counted by the verifier
+  static final int REPLAY = 0;                  // Seeded exchange differs from the vector
+  static final int PUBLIC_KEYS = 1;             // Keys rebuilt from the stored samples differ
+  static final int SECRET_FROM_SAMPLES = 2;     // Initiator secret from stored keys differs
+  static final String[] KINDS = {"replay", "public keys", "secret"};
+
+  private static final ThreadLocal<Random> generators = ThreadLocal.withInitial (Random::new);
+  private static final ThreadLocal<RlweKeyExchange[]> workers = ThreadLocal.withInitial (() ->
+    new RlweKeyExchange[] {
+      new RlweKeyExchange (new RingElt (Constants.A), Constants.ORDINARY, Constants.FOURIER,
+			   generators.get ()),
+      new RlweKeyExchange (new RingElt (Constants.A), Constants.ORDINARY, Constants.ORDINARY,
+			   generators.get ())
+    });
+
+
+  // Writes count vectors to file, computing them in parallel straight into the mapped file
+  static void generate (Path file, int count, long seed) throws IOException {
+    if (count < 0 || count > MAX_COUNT)
+      throw new IllegalArgumentException ("Vector count must be between 0 and " + MAX_COUNT);
+
+    try (FileChannel ch = FileChannel.open (file, StandardOpenOption.CREATE,
+					    StandardOpenOption.TRUNCATE_EXISTING,
+					    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buf = ch.map (FileChannel.MapMode.READ_WRITE, 0,
+				     HEADER_BYTES + (long) count * RECORD_BYTES);
+
+      IntStream.range (0, count).parallel ()
+	.forEach (i -> buf.put (offset (i),
+				RingElt.withBackend (RingElt.SCALAR, () ->
+						     vector (FailureEstimator.mix (seed + i)))));
+
+      buf.putInt (0, MAGIC).putInt (4, VERSION).putInt (8, count).putInt (12, RECORD_BYTES);
+      buf.force ();
+    }
+  }
+
+
+  // One record: the samples are drawn in the order RlweKeyExchange draws them
+  static byte[] vector (long seed) {
+    Random rnd = generators.get ();
+    RlweKeyExchange kex = workers.get ()[Constants.ORDINARY];
+    ByteBuffer rec = ByteBuffer.allocate (RECORD_BYTES);
+    RingElt[] samples = new RingElt[5];
+    RlweKeyPair keysI, keysR;
+    byte[][] response;
+    int i;
+
+    rnd.setSeed (seed);
+    for (i = 0; i < 4; i++)
+      samples[i] = Sample.getSample (rnd);
+
+    rec.putLong (SEED, seed);
+    for (i = 0; i < 4; i++)
+      putSmall (rec, SAMPLES + i * Constants.N, samples[i]);
+
+    // RlweKeyPair consumes its error term, so it gets a copy
+    keysI = new RlweKeyPair (new RlwePrivateKey (samples[0], Constants.ORDINARY),
+			     new RingElt (samples[1]), kex.a, Constants.ORDINARY);
+    keysR = new RlweKeyPair (new RlwePrivateKey (samples[2], Constants.ORDINARY),
+			     new RingElt (samples[3]), kex.a, Constants.ORDINARY);
+
+    samples[4] = Sample.getSample (rnd);
+    putSmall (rec, SAMPLES + 4 * Constants.N, samples[4]);
+    response = kex.respAgreement (keysR.getPrivateKey (), keysI.getPublicKey (), samples[4]);
+
+    if (!Arrays.equals (response[0], kex.initAgreement (keysI.getPrivateKey (),
+							  keysR.getPublicKey (), response[1])))
+      throw new IllegalStateException ("Reconciliation failed for seed " + seed);
+
+    rec.put (PUB_I, keysI.getPublicKey().serialize ());
+    rec.put (PUB_R, keysR.getPublicKey().serialize ());
+    rec.put (REC, response[1]);
+    rec.put (SECRET, response[0]);
+    return rec.array ();
+  }
+
+
+  // Checks every vector in both domains on the given backend. Returns failure counts by kind.
+  static long[] verify (ByteBuffer buf, int threads, byte backend) throws Exception {
+    int count = header (buf);
+    AtomicLongArray failures = new AtomicLongArray (KINDS.length);
+    ForkJoinPool pool = new ForkJoinPool (threads);
+    long[] result = new long[KINDS.length];
+
+    try {
+      pool.submit (() -> IntStream.range (0, count).parallel ().forEach (i -> {
+	    ByteBuffer rec = buf.slice (offset (i), RECORD_BYTES);
+	    RingElt.withBackend (backend, () -> {
+		for (byte dom = Constants.FOURIER; dom <= Constants.ORDINARY; dom++)
+		  check (rec, dom, failures);
+		return null;
+	      });
+	  })).get ();
+    } finally {
+      pool.shutdown ();
+    }
+
+    for (int k = 0; k < result.length; k++)
+      result[k] = failures.get (k);
+    return result;
+  }
+
+
+  private static void check (ByteBuffer rec, byte domain, AtomicLongArray failures) {
+    RlweKeyExchange kex = workers.get ()[domain];
+    RlweKeyPair keysI, keysR;
+    RlwePrivateKey privI;
+    RlwePublicKey pubI, pubR;
+    byte[][] response;
+    byte[] recData = bytes (rec, REC, Constants.numRecDataBytes);
+    byte[] secret = bytes (rec, SECRET, Constants.numSecretBytes);
+
+    // Seeded replay
+    generators.get().setSeed (rec.getLong (SEED));
+    keysI = kex.generateKeyPair ();
+    keysR = kex.generateKeyPair ();
+    response = kex.respAgreement (keysR.getPrivateKey (), keysI.getPublicKey ());
+
+    if (!matches (rec, PUB_I, keysI.getPublicKey ()) || !matches (rec, PUB_R, keysR.getPublicKey ())
+	|| !Arrays.equals (response[1], recData) || !Arrays.equals (response[0], secret)
+	|| !Arrays.equals (secret, kex.initAgreement (keysI.getPrivateKey (),
+						      keysR.getPublicKey (), response[1])))
+      failures.incrementAndGet (REPLAY);
+
+    // Rebuilt from the stored samples, independent of the generator
+    privI = new RlwePrivateKey (getSmall (rec, SAMPLES), Constants.ORDINARY);
+    pubI = new RlwePublicKey (privI, getSmall (rec, SAMPLES + Constants.N), kex.a);
+    pubR = new RlwePublicKey (new RlwePrivateKey (getSmall (rec, SAMPLES + 2 * Constants.N),
+						  Constants.ORDINARY),
+			      getSmall (rec, SAMPLES + 3 * Constants.N), kex.a);
+    if (domain == Constants.ORDINARY) {
+      pubI = pubI.fromFourierDomain ();
+      pubR = pubR.fromFourierDomain ();
+    }
+
+    if (!matches (rec, PUB_I, pubI) || !matches (rec, PUB_R, pubR))
+      failures.incrementAndGet (PUBLIC_KEYS);
+    if (!Arrays.equals (secret, kex.initAgreement (privI, pubR, recData)))
+      failures.incrementAndGet (SECRET_FROM_SAMPLES);
+  }
+
+
+  // Compares a key in either domain with the stored ORDINARY encoding
+  private static boolean matches (ByteBuffer rec, int offset, RlwePublicKey key) {
+    return Arrays.equals (key.fromFourierDomain().serialize (),
+			  bytes (rec, offset, Constants.numKeyBytes));
+  }
+
+
+  private static byte[] bytes (ByteBuffer rec, int offset, int length) {
+    byte[] b = new byte[length];
+    rec.get (offset, b);
+    return b;
+  }
+
+
+  private static void putSmall (ByteBuffer rec, int offset, RingElt x) {
+    for (int i = 0; i < Constants.N; i++)
+      rec.put (offset + i, (byte) x.getCoeff (i));
+  }
+
+
+  private static RingElt getSmall (ByteBuffer rec, int offset) {
+    RingElt x = new RingElt ();
+
+    for (int i = 0; i < Constants.N; i++)
+      x.setCoeff (i, rec.get (offset + i));
+    return x;
+  }
+
+
+  // Position of vector i, which fits in an int for any count up to MAX_COUNT
+  private static int offset (int i) {
+    return Math.toIntExact (HEADER_BYTES + (long) i * RECORD_BYTES);
+  }
+
+
+  // Validates the header and returns the vector count
+  static int header (ByteBuffer buf) throws IOException {
+    if (buf.capacity () < HEADER_BYTES || buf.getInt (0) != MAGIC)
+      throw new IOException ("Not a KAT file");
+    if (buf.getInt (4) != VERSION || buf.getInt (12) != RECORD_BYTES)
+      throw new IOException ("Unsupported KAT version " + buf.getInt (4));
+
+    int count = buf.getInt (8);
+    if (count < 0 || buf.capacity () < HEADER_BYTES + (long) count * RECORD_BYTES)
+      throw new IOException ("KAT file is truncated");
+    return count;
+  }
+
+
+  static MappedByteBuffer map (Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open (file, StandardOpenOption.READ)) {
+      if (ch.size () > Integer.MAX_VALUE)
+	throw new IOException ("KAT file is larger than one mapping");
+      return ch.map (FileChannel.MapMode.READ_ONLY, 0, ch.size ());
+    }
+  }
+
+
+  public static void main (String[] args) throws Exception {
+    int i, count = 1000, threads = Runtime.getRuntime().availableProcessors ();
+    long seed = 1, startTime = System.nanoTime ();
+    String backend = null;
+    boolean ok = true;
+
+    if (args.length < 2)
+      throw new IllegalArgumentException ("Usage: Kat generate|verify <file> [options]");
+
+    for (i = 2; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+      case "-n":       count = Integer.parseInt (args[i + 1]); break;
+      case "-seed":    seed = Long.parseLong (args[i + 1]); break;
+      case "-threads": threads = Integer.parseInt (args[i + 1]); break;
+      case "-backend": backend = args[i + 1]; break;
+      default:
+	throw new IllegalArgumentException ("Unknown option " + args[i]);
+      }
+    }
+
+    new RlweKeyExchange ();                     // Initializes the ring and picks a backend
+    Path file = Paths.get (args[1]);
+
+    if (args[0].equals ("generate")) {
+      generate (file, count, seed);
+      System.out.printf ("Wrote %d vectors to %s in %.1f s%n", count, file,
+			 (System.nanoTime () - startTime) / 1e9);
+      return;
+    }
+
+    MappedByteBuffer buf = map (file);
+
+    for (String name : backend == null ? AutoTune.NAMES : new String[] {backend}) {
+      long[] failures;
+
+      if (!AutoTune.isAvailable (AutoTune.parse (name))) {
+	System.out.printf ("%-8s unavailable%n", name);
+	continue;
+      }
+      startTime = System.nanoTime ();
+      failures = verify (buf, threads, AutoTune.parse (name));
+
+      System.out.printf ("%-8s %d vectors x 2 domains in %.1f s:", name, header (buf),
+			 (System.nanoTime () - startTime) / 1e9);
+      for (int k = 0; k < KINDS.length; k++) {
+	System.out.printf (" %s %d%s", KINDS[k], failures[k], k + 1 < KINDS.length ? "," : "\n");
+	ok &= failures[k] == 0;
+      }
+    }
+
+    if (!ok)
+      System.exit (1);
+  }
+}
@@ -11,16 +11,21 @@ package rlwe;
  **************************************************************************************************/
 
 import java.util.Arrays;
-import java.math.BigInteger;
+import java.util.List;
 import java.util.Random;
+import java.time.Duration;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
 
 class RlweKeyExchange {
   RingElt a;
   byte aDomain;
   byte transmitDomain;
+  Random rand;                                  // If null, a fresh Random is used for each draw
   
   public RlweKeyExchange () {
     RingElt.initialize ();
+    AutoTune.run ();
     transmitDomain = Constants.ORDINARY;
     a = new RingElt (Constants.A);
     a.ntt ();
@@ -30,12 +35,60 @@ class RlweKeyExchange {
 
   public RlweKeyExchange (RingElt aIn, byte aDom, byte tDom) {
     RingElt.initialize ();
+    AutoTune.run ();
     transmitDomain = tDom;
     a = new RingElt (aIn);
     if (aDom == Constants.ORDINARY)
       a.ntt ();
     aDomain = Constants.FOURIER;
   }
+
+
+  public RlweKeyExchange (RingElt aIn, byte aDom, byte tDom, Random rnd) {
+    // All sampling and reconciliation randomness is drawn from rnd, so a seeded generator makes
+    // every exchange reproducible
+    this (aIn, aDom, tDom);
+    rand = rnd;
+  }
+    
+  
+  public static long warmUp (Duration budget) {
+    // Runs throwaway exchanges in both transmit domains until the JIT has settled or the budget
+    // is spent. Settled means no compilation happened during the last batch and the batch was
+    // within 5% of the fastest seen. Where the JVM cannot report compilation time only the latency
+    // test applies, so the loop can stop while code is still being compiled. Returns the average
+    // nanoseconds per exchange of the last batch.
+    RlweKeyExchange[] kex = {
+      new RlweKeyExchange (new RingElt (Constants.A), Constants.ORDINARY, Constants.FOURIER),
+      new RlweKeyExchange (new RingElt (Constants.A), Constants.ORDINARY, Constants.ORDINARY)
+    };
+    CompilationMXBean jit = ManagementFactory.getCompilationMXBean ();
+    boolean jitTimed = jit != null && jit.isCompilationTimeMonitoringSupported ();
+    long deadline = System.nanoTime () + budget.toNanos ();
+    long start, latency, best = Long.MAX_VALUE, compileTime = -1, lastCompileTime;
+    int i, batch = 64;
+    RlweKeyPair keysI, keysR;
+    byte[][] response;
+
+    do {
+      lastCompileTime = compileTime;
+      start = System.nanoTime ();
+
+      for (i = 0; i < batch; i++) {
+	keysI = kex[i & 1].generateKeyPair ();
+	keysR = kex[i & 1].generateKeyPair ();
+	response = kex[i & 1].respAgreement (keysR.getPrivateKey (), keysI.getPublicKey ());
+	kex[i & 1].initAgreement (keysI.getPrivateKey (), keysR.getPublicKey (), response[1]);
+      }
+
+      latency = (System.nanoTime () - start) / batch;
+      best = Math.min (best, latency);
+      compileTime = jitTimed ? jit.getTotalCompilationTime () : 0;
+    } while (System.nanoTime () < deadline
+	     && (compileTime != lastCompileTime || latency > best + best / 20));
+
+    return latency;
+  }
     
   
   public RingElt getA () {
@@ -43,8 +96,32 @@ class RlweKeyExchange {
   }
 
 
+  public byte getTransmitDomain () {
+    return transmitDomain;
+  }
+
+
   public RlweKeyPair generateKeyPair () {
-    return new RlweKeyPair (a, transmitDomain);
+    return generateKeyPair (transmitDomain);
+  }
+
+
+  public RlweKeyPair generateKeyPair (byte domain) {
+    // As above, with the public key in the given domain rather than the transmit domain
+    Random rnd = random ();
+    Workspace ws = Workspace.get ();
+    RlwePrivateKey priv;
+    RlweKeyPair keys;
+
+    try {
+      Sample.getSample (rnd, ws.e, ws.sampleBits);
+      priv = new RlwePrivateKey (ws.e, Constants.ORDINARY);
+      Sample.getSample (rnd, ws.e, ws.sampleBits);
+      keys = new RlweKeyPair (priv, ws.e, a, domain);
+    } finally {
+      ws.clear ();
+    }
+    return keys;
   }
 
 
@@ -55,56 +132,204 @@ class RlweKeyExchange {
 
   public byte[][] respAgreement (RlwePrivateKey kR, RlwePublicKey kI) {
     // Sample eprime, then compute and return: [shared secret, reconciliation data]
-    RingElt eprime = Sample.getSample ();
-    return respAgreement (kR, kI, eprime);
+    Workspace ws = Workspace.get ();
+
+    Sample.getSample (random (), ws.e, ws.sampleBits);
+    try {
+      return respAgreement (kR, kI, ws.e);
+    } catch (RuntimeException e) {
+      ws.clear ();                              // Cleared on success by the agreement itself
+      throw e;
+    }
   }
 
 
   public byte[][] respAgreement (RlwePrivateKey kR, RlwePublicKey kI, RingElt eprime) {
     // For a given eprime, compute and return: [shared secret, reconciliation data]
     byte[][] result = new byte[2][];
+    RespAgreementEvent event = new RespAgreementEvent ();
+    boolean fourier = kI.getDomain () == Constants.FOURIER;
 
-    if (transmitDomain == Constants.ORDINARY) 
-      kI.toFourierDomain ();
-      
-    RingElt v = kI.getKey().pointwiseMult (kR.getS ());
-    v.nttInv();
-    v = v.ringAdd (eprime);
+    event.begin ();
+    Transcript.recordResp (kI, kR);
+    kI = kI.toFourierDomain ();
 
-    result[1] = helpRec (v);    
-    result[0] = rec (v, result[1]);
-    
+    result[0] = new byte[Constants.numSecretBytes];
+    result[1] = new byte[Constants.numRecDataBytes];
+    respAgreement (kR, kI, eprime, result[0], result[1], 0);
+
+    event.commit (transmitDomain, fourier);
     return result;
   }  
 
+
+  private void respAgreement (RlwePrivateKey kR, RlwePublicKey kI, RingElt eprime, byte[] key,
+			      byte[] rdata, int rdataOffset) {
+    // Writes the shared secret to key and the reconciliation data to rdata[rdataOffset...]
+    Workspace ws = Workspace.get ();
+
+    try {
+      RingElt v = kI.getKey().pointwiseMult (kR.getS (), ws.v);
+
+      v.nttInv();
+      v.ringAdd (eprime, v);
+
+      helpRec (v, rdata, rdataOffset);
+      rec (v, rdata, rdataOffset, key);
+      RlweMetrics.count (RlweMetrics.Counter.AGREEMENTS);
+    } finally {
+      ws.clear ();
+    }
+  }
+
+
+  public byte[][] encapsulate (RlwePublicKey kI) {
+    // One-pass agreement against a published public key. Returns [shared secret, ciphertext]
+    // where the ciphertext is an ephemeral public key (as serialized) followed by the
+    // reconciliation data.
+    byte[][] result = new byte[2][];
+    RlweKeyPair kR = generateKeyPair ();
+
+    Transcript.recordResp (kI, kR.getPrivateKey ());
+    kI = kI.toFourierDomain ();
+
+    result[0] = new byte[Constants.numSecretBytes];
+    result[1] = new byte[Constants.numCiphertextBytes];
+    kR.getPublicKey().serialize (result[1], 0);
+    Workspace ws = Workspace.get ();
+    Sample.getSample (random (), ws.e, ws.sampleBits);
+    respAgreement (kR.getPrivateKey (), kI, ws.e, result[0], result[1], Constants.numKeyBytes);
+
+    return result;
+  }
+
+
+  public byte[] decapsulate (RlwePrivateKey kI, byte[] ciphertext) {
+    if (ciphertext.length != Constants.numCiphertextBytes)
+      throw new IllegalArgumentException ("Ciphertext must be " + Constants.numCiphertextBytes
+					  + " bytes");
+
+    RlwePublicKey kR = new RlwePublicKey (ciphertext, 0);
+    return initAgreement (kI, kR, ciphertext, Constants.numKeyBytes);
+  }
+
   
   public byte[] initAgreement (RlwePrivateKey kI, RlwePublicKey kR, byte[] rdata) {
-    if (transmitDomain == Constants.ORDINARY) 
-      kR.toFourierDomain ();
+    if (rdata.length != Constants.numRecDataBytes)
+      throw new IllegalArgumentException ("Reconciliation data must be "
+					  + Constants.numRecDataBytes + " bytes");
+    return initAgreement (kI, kR, rdata, 0);
+  }
+
+
+  byte[] initAgreement (RlwePrivateKey kI, RlwePublicKey kR, byte[] rdata, int rdataOffset) {
+    // As above, reading the reconciliation data from rdata[rdataOffset...]
+    InitAgreementEvent event = new InitAgreementEvent ();
+    boolean fourier = kR.getDomain () == Constants.FOURIER;
+
+    if (rdataOffset < 0 || rdata.length - rdataOffset < Constants.numRecDataBytes)
+      throw new IllegalArgumentException ("Reconciliation data is truncated");
+
+    event.begin ();
+    Transcript.recordInit (kR, rdata, rdataOffset, kI);
+    kR = kR.toFourierDomain ();
     
-    RingElt v = kR.getKey().pointwiseMult (kI.getS ());
-    v.nttInv();
+    Workspace ws = Workspace.get ();
+    byte[] key = new byte[Constants.numSecretBytes];
+
+    try {
+      RingElt v = kR.getKey().pointwiseMult (kI.getS (), ws.v);
+      v.nttInv();
+
+      rec (v, rdata, rdataOffset, key);
+      RlweMetrics.count (RlweMetrics.Counter.AGREEMENTS);
+    } finally {
+      ws.clear ();
+    }
+
+    event.commit (transmitDomain, fourier);
+    return key;
+  }
 
-    return rec (v, rdata);
+
+  public byte[] initAgreementAll (RlwePrivateKey kI, List<RlwePublicKey> kR, List<byte[]> rdata) {
+    // Completes the agreement with each responder: kR.get (i) sent rdata.get (i). Returns the
+    // secrets back to back, the one for responder i at [i * numSecretBytes...]. The private key
+    // is always held in the Fourier domain, so each responder costs one pointwise product and a
+    // share of an interleaved inverse NTT (see RingElt.nttInv (RingElt[], int, long[])). One
+    // InitAgreementEvent is committed per interleaved group.
+    int i, p, n, count = kR.size ();
+    byte[] keys = new byte[count * Constants.numSecretBytes];
+    Workspace ws = Workspace.get ();
+    RingElt[] group = ws.group ();
+    InitAgreementEvent event;
+    boolean fourier;
+
+    if (rdata.size () != count)
+      throw new IllegalArgumentException ("Need reconciliation data for each of " + count
+					  + " responders");
+    for (byte[] r : rdata)
+      if (r.length != Constants.numRecDataBytes)
+	throw new IllegalArgumentException ("Reconciliation data must be "
+					    + Constants.numRecDataBytes + " bytes");
+
+    try {
+      for (i = 0; i < count; i += n) {
+	n = Math.min (RingElt.INTERLEAVE, count - i);
+	event = new InitAgreementEvent ();
+	fourier = true;
+	event.begin ();
+
+	for (p = 0; p < n; p++) {
+	  Transcript.recordInit (kR.get (i + p), rdata.get (i + p), 0, kI);
+	  fourier &= kR.get(i + p).getDomain () == Constants.FOURIER;
+	  kR.get(i + p).toFourierDomain().getKey().pointwiseMult (kI.getS (), group[p]);
+	}
+	RingElt.nttInv (group, n, ws.interleaved ());
+
+	for (p = 0; p < n; p++) {
+	  rec (group[p], rdata.get (i + p), 0, keys, (i + p) * Constants.numSecretBytes);
+	  RlweMetrics.count (RlweMetrics.Counter.AGREEMENTS);
+	}
+
+	event.responders = n;
+	event.commit (transmitDomain, fourier);
+      }
+    } finally {
+      ws.clear ();
+      ws.clearGroup ();
+    }
+
+    return keys;
   }
  
  
-  private byte[] helpRec (RingElt v) {
+  void helpRec (RingElt v, byte[] cvec, int offset) {
+    // Scratch comes from the workspace; the random bits are read as a 256-bit big-endian number,
+    // bit i for coefficient group i
     int i, j, k, x, rbit, norm;
-    int[] v0 = new int[4];
-    int[] v1 = new int[4];
-    int[] rdata = new int[Constants.N];
-    long[] xvec = v.getCoeffs ();
+    Workspace ws = Workspace.get ();
+    int[] v0 = ws.v0;
+    int[] v1 = ws.v1;
+    int[] rdata = ws.rdata;
+    byte[] randbits = ws.recBits;
+    long startTime = RlweMetrics.start ();
     
-    Random rnd = new Random ();
-    BigInteger randbits = new BigInteger (256, rnd);
+    random().nextBytes (randbits);
+
+    if (RingElt.getBackend () == RingElt.NATIVE) {
+      Native.helpRec (v.coeffArray (), randbits, rdata);
+      compressRecData (rdata, cvec, offset);
+      RlweMetrics.stop (RlweMetrics.Phase.HELP_REC, startTime);
+      return;
+    }
     
     for (i = 0; i < 256; i++) {
-      rbit = randbits.testBit (i) ? 1 : 0;
+      rbit = (randbits[31 - (i >> 3)] >> (i & 7)) & 1;
 
       k = 0;
       for (j = 0; j < 4; j++) {
-	x = 8 * (int) xvec[i + 256*j] + 4 * rbit;
+	x = 8 * (int) v.getCoeff (i + 256*j) + 4 * rbit;
 	v0[j] = (x + Constants.Q) / Constants.Q2;   // v0 = round (x/2q)
 	v1[j] = x / Constants.Q2;                   // v1 = floor (x/2q)
 	k += abs (x - v0[j] * Constants.Q2);        // k += amount x/2q was rounded
@@ -121,67 +346,86 @@ class RlweKeyExchange {
       rdata[i + 768] = (-k + 2 * v0[3]) & 3;
     }
 
-    return compressRecData (rdata);
+    compressRecData (rdata, cvec, offset);
+    RlweMetrics.stop (RlweMetrics.Phase.HELP_REC, startTime);
   }
   
 
-  private int abs (int x) {
+  private Random random () {
+    if (rand == null)
+      return new Random ();
+    return rand;
+  }
+
+
+  int abs (int x) {
     int mask = x >> (Integer.SIZE - 1);
     return ((mask ^ x) - mask);
   }
 
 
-  private byte[] compressRecData (int[] rvec) {
-    byte[] cvec = new byte[Constants.numRecDataBytes];
+  private void compressRecData (int[] rvec, byte[] cvec, int offset) {
     int i;
     
     for (i = 0; i < Constants.numRecDataBytes; i++) {
-      cvec[i] = (byte) rvec[4*i];
-      cvec[i] |= (byte) (rvec[4*i + 1] << 2);
-      cvec[i] |= (byte) (rvec[4*i + 2] << 4);
-      cvec[i] |= (byte) (rvec[4*i + 3] << 6);
+      cvec[offset + i] = (byte) rvec[4*i];
+      cvec[offset + i] |= (byte) (rvec[4*i + 1] << 2);
+      cvec[offset + i] |= (byte) (rvec[4*i + 2] << 4);
+      cvec[offset + i] |= (byte) (rvec[4*i + 3] << 6);
     }
-    
-    return cvec;
   }
 
 
-  private int[] decompressRecData (byte[] cvec) {
-    int[] rvec = new int[Constants.N];
+  private int[] decompressRecData (byte[] cvec, int offset, int[] rvec) {
     int i;
     
     for (i = 0; i < Constants.numRecDataBytes; i++) {
-      rvec[4*i] = cvec[i] & 3;
-      rvec[4*i + 1] = (cvec[i] >> 2) & 3;
-      rvec[4*i + 2] = (cvec[i] >> 4) & 3;
-      rvec[4*i + 3] = (cvec[i] >> 6) & 3;
+      rvec[4*i] = cvec[offset + i] & 3;
+      rvec[4*i + 1] = (cvec[offset + i] >> 2) & 3;
+      rvec[4*i + 2] = (cvec[offset + i] >> 4) & 3;
+      rvec[4*i + 3] = (cvec[offset + i] >> 6) & 3;
     }
     
     return rvec;
   }
 
 
-  private byte[] rec (RingElt v, byte[] compressedData) {
+  private void rec (RingElt v, byte[] compressedData, int offset, byte[] key) {
+    rec (v, compressedData, offset, key, 0);
+  }
+
+
+  private void rec (RingElt v, byte[] compressedData, int offset, byte[] key, int keyOffset) {
+    // Writes the secret to key[keyOffset...], which must be zero
     int i;
-    int[] t = new int[4];
-    long[] x = v.getCoeffs ();
-    int[] rdata = decompressRecData (compressedData);
-    byte[] key = new byte[32];
+    Workspace ws = Workspace.get ();
+    int[] t = ws.t;
+    int[] rdata = decompressRecData (compressedData, offset, ws.rdata);
+    long startTime = RlweMetrics.start ();
+
+    if (RingElt.getBackend () == RingElt.NATIVE) {
+      Native.rec (v.coeffArray (), rdata, key, keyOffset);
+      RlweMetrics.stop (RlweMetrics.Phase.REC, startTime);
+      return;
+    }
     
     for (i = 0; i < 256; i++) {
-      t[0] = Constants.Q16 + 8 * (int) x[i]     - Constants.Q * (2 * rdata[i]     + rdata[i+768]);
-      t[1] = Constants.Q16 + 8 * (int) x[i+256] - Constants.Q * (2 * rdata[i+256] + rdata[i+768]);
-      t[2] = Constants.Q16 + 8 * (int) x[i+512] - Constants.Q * (2 * rdata[i+512] + rdata[i+768]);
-      t[3] = Constants.Q16 + 8 * (int) x[i+768] - Constants.Q * rdata[i+768];
-
-      key[i >> 3] |= ldDecode (t) << (i & 7);
+      t[0] = Constants.Q16 + 8 * (int) v.getCoeff (i)
+	- Constants.Q * (2 * rdata[i] + rdata[i+768]);
+      t[1] = Constants.Q16 + 8 * (int) v.getCoeff (i+256)
+	- Constants.Q * (2 * rdata[i+256] + rdata[i+768]);
+      t[2] = Constants.Q16 + 8 * (int) v.getCoeff (i+512)
+	- Constants.Q * (2 * rdata[i+512] + rdata[i+768]);
+      t[3] = Constants.Q16 + 8 * (int) v.getCoeff (i+768) - Constants.Q * rdata[i+768];
+
+      key[keyOffset + (i >> 3)] |= ldDecode (t) << (i & 7);
     }
 
-    return key;
+    RlweMetrics.stop (RlweMetrics.Phase.REC, startTime);
   }
 
 
-  private int ldDecode (int[] t) {
+  int ldDecode (int[] t) {
     int i, norm = 0;
 
     for (i = 0; i < 4; i++) 
@@ -0,0 +1,206 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Scheduled rotation of a published static public key.
+ *
+ * Each rotation publishes a new generation: the same private key with a fresh public key (see
+ * RlweKeyPair.rerandomized ()), numbered from 0 and serialized in advance. The next generation is
+ * computed on a background thread as soon as the previous swap is done, so a rotation itself is
+ * one reference swap and request threads never pay for key generation.
+ *
+ * Readers see an immutable State through an AtomicReference: the current generation and the
+ * generations retired within the overlap window, which stay available by id so handshakes that
+ * started against an older key can finish. Reads take no locks; rotations are serialized. A
+ * scheduled rotation that fails leaves the current generation published, and the schedule tries
+ * again at the next period; the failure is available from getLastFailure ().
+ *
+ **************************************************************************************************/
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+
+class KeyGeneration {
+  final long id;
+  final RlweKeyPair keys;
+  private final byte[] encoded;
+
+
+  KeyGeneration (long id, RlweKeyPair keys) {
+    this.id = id;
+    this.keys = keys;
+    encoded = keys.getPublicKey().serialize ();
+  }
+
+
+  public long getId () {
+    return id;
+  }
+
+
+  public RlweKeyPair getKeyPair () {
+    return keys;
+  }
+
+
+  // The public key as serialized, computed when the generation was made
+  public byte[] getEncoded () {
+    return encoded.clone ();
+  }
+}
+
+
+class RlweKeyRotation implements AutoCloseable {
+  private final RingElt a;
+  private final long overlapNanos;
+  private final LongSupplier clock;
+  private final AtomicReference<State> state;
+  private final ScheduledExecutorService scheduler;
+  private KeyGeneration next;                   // Guarded by this
+  private volatile RuntimeException lastFailure;
+
+
+  private static class State {
+    final KeyGeneration current;
+    final List<KeyGeneration> retired;          // Newest first
+    final List<Long> retiredAt;
+
+
+    State (KeyGeneration current, List<KeyGeneration> retired, List<Long> retiredAt) {
+      this.current = current;
+      this.retired = retired;
+      this.retiredAt = retiredAt;
+    }
+  }
+
+
+  // Rotates every period on a daemon thread, or only through rotate () if period is null
+  RlweKeyRotation (RlweKeyExchange kex, RlweKeyPair initial, Duration period, Duration overlap,
+		   LongSupplier clock) {
+    a = kex.getA ();
+    overlapNanos = overlap.toNanos ();
+    this.clock = clock;
+    state = new AtomicReference<State> (new State (new KeyGeneration (0, initial),
+						   new ArrayList<KeyGeneration> (),
+						   new ArrayList<Long> ()));
+    scheduler = Executors.newSingleThreadScheduledExecutor (r -> {
+	Thread t = new Thread (r, "rlwe-key-rotation");
+	t.setDaemon (true);
+	return t;
+      });
+
+    scheduler.execute (this::precompute);
+    if (period != null)
+      scheduler.scheduleAtFixedRate (this::scheduledRotate, period.toNanos (), period.toNanos (),
+				     TimeUnit.NANOSECONDS);
+  }
+
+
+  RlweKeyRotation (RlweKeyExchange kex, RlweKeyPair initial, Duration period, Duration overlap) {
+    this (kex, initial, period, overlap, System::nanoTime);
+  }
+
+
+  public KeyGeneration current () {
+    return state.get().current;
+  }
+
+
+  // The generation with this id if it is current or was retired within the overlap window,
+  // otherwise null
+  public KeyGeneration get (long id) {
+    State s = state.get ();
+    long now = clock.getAsLong ();
+
+    if (s.current.id == id)
+      return s.current;
+    for (int i = 0; i < s.retired.size (); i++)
+      if (s.retired.get(i).id == id)
+	return now - s.retiredAt.get (i) < overlapNanos ? s.retired.get (i) : null;
+    return null;
+  }
+
+
+  // Publishes the precomputed generation and starts computing the one after it. Returns the
+  // generation now current.
+  public synchronized KeyGeneration rotate () {
+    State s = state.get ();
+    long now = clock.getAsLong ();
+    List<KeyGeneration> retired = new ArrayList<KeyGeneration> ();
+    List<Long> retiredAt = new ArrayList<Long> ();
+    KeyGeneration n = next != null ? next : make (s.current);
+
+    retired.add (s.current);
+    retiredAt.add (now);
+    for (int i = 0; i < s.retired.size (); i++) {
+      if (now - s.retiredAt.get (i) < overlapNanos) {
+	retired.add (s.retired.get (i));
+	retiredAt.add (s.retiredAt.get (i));
+      }
+    }
+
+    state.set (new State (n, retired, retiredAt));
+    next = null;
+    if (!scheduler.isShutdown ())
+      scheduler.execute (this::precompute);
+
+    return n;
+  }
+
+
+  // An exception escaping a periodic task cancels the schedule for good, so a failed rotation is
+  // kept for getLastFailure () and the next period tries again
+  private void scheduledRotate () {
+    try {
+      rotate ();
+    } catch (RuntimeException e) {
+      lastFailure = e;
+    }
+  }
+
+
+  // The exception from the most recent scheduled rotation that failed, or null if none has
+  public RuntimeException getLastFailure () {
+    return lastFailure;
+  }
+
+
+  // The generation the next rotation will publish, or null while it is still being computed
+  synchronized KeyGeneration precomputed () {
+    return next;
+  }
+
+
+  private void precompute () {
+    KeyGeneration n;
+
+    synchronized (this) {
+      if (next != null)
+	return;
+      n = state.get().current;
+    }
+    n = make (n);                               // Outside the lock: this is the slow part
+
+    synchronized (this) {
+      if (next == null && state.get().current.id + 1 == n.id)
+	next = n;
+    }
+  }
+
+
+  private KeyGeneration make (KeyGeneration after) {
+    return new KeyGeneration (after.id + 1, after.keys.rerandomized (a));
+  }
+
+
+  public void close () {
+    scheduler.shutdownNow ();
+  }
+}
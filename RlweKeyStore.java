@@ -0,0 +1,317 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * File-backed store of static keys with fixed-size records, read through memory-mapped buffers.
+ *
+ * Keys are stored already in the Fourier domain using the packed ring elt encoding, so loading a
+ * key costs one unpack and no NTTs. Opening a store only maps the file and checks the header;
+ * records are decoded when they are looked up, through an open-addressed hash index written
+ * after the records. Layout:
+ *
+ *       header   magic | version | domain | record count | index offset | index slots
+ *       records  id (8) | flags (1) | padding (3) | public key (1792) | private key (1792) | pad
+ *       index    slots of id (8) | record number + 1 (4), zero when empty
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntToLongFunction;
+
+
+class RlweKeyStore implements AutoCloseable {
+  static final int MAGIC = 0x524c4b53;                 // "RLKS"
+  static final byte VERSION = 1;
+
+  static final int HEADER_BYTES = 32;
+  static final int RECORD_BYTES = 3600;
+  static final int SLOT_BYTES = 12;
+
+  static final byte HAS_PUBLIC = 1;
+  static final byte HAS_PRIVATE = 2;
+
+  static final int PUBLIC_OFFSET = 12;
+  static final int PRIVATE_OFFSET = PUBLIC_OFFSET + Constants.numPackedBytes;
+
+  // Records per mapped segment, keeping each mapping under the 2 GB limit of a ByteBuffer
+  static final int SEGMENT_RECORDS = Integer.MAX_VALUE / RECORD_BYTES;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer[] segments;
+  private final MappedByteBuffer index;
+  private final int recordCount;
+  private final int slotMask;
+
+
+  private RlweKeyStore (FileChannel ch) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate (HEADER_BYTES);
+    long indexOffset;
+    int i, slots, nsegs, len;
+
+    channel = ch;
+    channel.read (header, 0);
+    header.flip ();
+
+    if (header.remaining () < HEADER_BYTES || header.getInt (0) != MAGIC)
+      throw new IOException ("Not an RLWE key store");
+    if (header.get (4) != VERSION)
+      throw new IOException ("Unsupported key store version " + header.get (4));
+    if (header.get (5) != Constants.FOURIER)
+      throw new IOException ("Key store must hold Fourier-domain keys");
+
+    recordCount = header.getInt (8);
+    indexOffset = header.getLong (12);
+    slots = header.getInt (20);
+
+    if (indexOffset != HEADER_BYTES + (long) recordCount * RECORD_BYTES
+	|| Integer.bitCount (slots) != 1)
+      throw new IOException ("Key store is incomplete");
+
+    nsegs = (recordCount + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS;
+    segments = new MappedByteBuffer[nsegs];
+    for (i = 0; i < nsegs; i++) {
+      len = Math.min (SEGMENT_RECORDS, recordCount - i * SEGMENT_RECORDS);
+      segments[i] = channel.map (FileChannel.MapMode.READ_ONLY,
+				 HEADER_BYTES + (long) i * SEGMENT_RECORDS * RECORD_BYTES,
+				 (long) len * RECORD_BYTES);
+    }
+
+    index = channel.map (FileChannel.MapMode.READ_ONLY, indexOffset, (long) slots * SLOT_BYTES);
+    slotMask = slots - 1;
+  }
+
+
+  public static RlweKeyStore open (Path file) throws IOException {
+    FileChannel ch = FileChannel.open (file, StandardOpenOption.READ);
+    try {
+      return new RlweKeyStore (ch);
+    } catch (IOException e) {
+      ch.close ();
+      throw e;
+    }
+  }
+
+
+  public int size () {
+    return recordCount;
+  }
+
+
+  public boolean contains (long id) throws IOException {
+    return find (id) >= 0;
+  }
+
+
+  // Returns the stored public key in the Fourier domain, or null if there is none for this id
+  public RlwePublicKey getPublicKey (long id) throws IOException {
+    int record = find (id);
+
+    if (record < 0 || (flags (record) & HAS_PUBLIC) == 0)
+      return null;
+    return new RlwePublicKey (ringElt (record, PUBLIC_OFFSET), Constants.FOURIER);
+  }
+
+
+  // Returns the stored private key in the Fourier domain, or null if there is none for this id
+  public RlwePrivateKey getPrivateKey (long id) throws IOException {
+    int record = find (id);
+
+    if (record < 0 || (flags (record) & HAS_PRIVATE) == 0)
+      return null;
+    return new RlwePrivateKey (ringElt (record, PRIVATE_OFFSET), Constants.FOURIER);
+  }
+
+
+  // Returns the record number for id, or -1. A valid index always has an empty slot, so a probe
+  // that visits every slot, or an entry pointing past the records, means the file is corrupt.
+  private int find (long id) throws IOException {
+    int slot = hash (id) & slotMask;
+    int i, record;
+
+    for (i = 0; i <= slotMask; i++) {
+      if ((record = index.getInt (slot * SLOT_BYTES + 8)) == 0)
+	return -1;
+      if (index.getLong (slot * SLOT_BYTES) == id) {
+	if (record < 0 || record > recordCount)
+	  throw new IOException ("Key store index is corrupt");
+	return record - 1;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+
+    throw new IOException ("Key store index is corrupt");
+  }
+
+
+  private byte flags (int record) {
+    return segment (record).get (position (record) + 8);
+  }
+
+
+  private RingElt ringElt (int record, int offset) {
+    return new RingElt (segment (record), position (record) + offset);
+  }
+
+
+  private MappedByteBuffer segment (int record) {
+    return segments[record / SEGMENT_RECORDS];
+  }
+
+
+  private static int position (int record) {
+    return (record % SEGMENT_RECORDS) * RECORD_BYTES;
+  }
+
+
+  static int hash (long id) {
+    id = (id ^ (id >>> 33)) * 0xff51afd7ed558ccdL;
+    id = (id ^ (id >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return (int) (id ^ (id >>> 33));
+  }
+
+
+  // Creates file for writing, replacing any existing file, readable and writable by the owner
+  // only since a store holds private keys. An existing file is removed first, as opening it would
+  // keep its permissions.
+  static FileChannel createPrivate (Path file, OpenOption... options) throws IOException {
+    Set<OpenOption> opts = new HashSet<OpenOption> (Arrays.asList (options));
+
+    opts.add (StandardOpenOption.CREATE_NEW);
+    opts.add (StandardOpenOption.WRITE);
+    Files.deleteIfExists (file);
+    return FileChannel.open (file, opts, PosixFilePermissions.asFileAttribute (
+			       PosixFilePermissions.fromString ("rw-------")));
+  }
+
+
+  public void close () throws IOException {
+    channel.close ();
+  }
+}
+
+
+class RlweKeyStoreWriter implements AutoCloseable {
+  private static final int BATCH_RECORDS = 256;
+
+  private final FileChannel channel;
+  private final ByteBuffer batch;
+  private final ArrayList<Long> ids;
+  private long position;
+
+
+  public RlweKeyStoreWriter (Path file) throws IOException {
+    channel = RlweKeyStore.createPrivate (file);
+    batch = ByteBuffer.allocateDirect (BATCH_RECORDS * RlweKeyStore.RECORD_BYTES);
+    ids = new ArrayList<Long> ();
+    position = RlweKeyStore.HEADER_BYTES;
+  }
+
+
+  // Appends a record; either key may be null. The private key is converted to the Fourier domain
+  // on a copy so the caller's object is left untouched.
+  public void add (long id, RlwePublicKey pub, RlwePrivateKey priv) throws IOException {
+    int start = batch.position ();
+
+    putRecord (batch, start, id, pub, priv);
+    batch.position (start + RlweKeyStore.RECORD_BYTES);
+    ids.add (id);
+
+    if (!batch.hasRemaining ())
+      flushBatch ();
+  }
+
+
+  // Encodes one record at out[start...], overwriting all RECORD_BYTES of it
+  static void putRecord (ByteBuffer out, int start, long id, RlwePublicKey pub,
+			 RlwePrivateKey priv) {
+    int i;
+    byte flags = 0;
+
+    for (i = 0; i < RlweKeyStore.RECORD_BYTES; i += 8)      // Don't leave stale key bytes behind
+      out.putLong (start + i, 0);
+
+    if (pub != null) {
+      pub.toFourierDomain().getKey().pack (out, start + RlweKeyStore.PUBLIC_OFFSET);
+      flags |= RlweKeyStore.HAS_PUBLIC;
+    }
+
+    if (priv != null) {
+      RlwePrivateKey k = new RlwePrivateKey (priv.getS (), priv.getDomain ());
+      k.getS().pack (out, start + RlweKeyStore.PRIVATE_OFFSET);
+      flags |= RlweKeyStore.HAS_PRIVATE;
+    }
+
+    out.putLong (start, id);
+    out.put (start + 8, flags);
+  }
+
+
+  public void add (long id, RlweKeyPair keys) throws IOException {
+    add (id, keys.getPublicKey (), keys.getPrivateKey ());
+  }
+
+
+  private void flushBatch () throws IOException {
+    batch.flip ();
+    while (batch.hasRemaining ())
+      position += channel.write (batch, position);
+    batch.clear ();
+  }
+
+
+  // Writes the index and header. The store is not readable until this has completed.
+  public void close () throws IOException {
+    try {
+      flushBatch ();
+      finish (channel, position, ids.size (), ids::get);
+    } finally {
+      channel.close ();
+    }
+  }
+
+
+  // Writes the index at position, which must directly follow count records, then the header,
+  // and forces the file. id (i) is the id of record i.
+  static void finish (FileChannel channel, long position, int count, IntToLongFunction id)
+    throws IOException {
+    int i, slot, slots = Integer.highestOneBit (Math.max (1, count)) << 2;
+    ByteBuffer table = ByteBuffer.allocate (slots * RlweKeyStore.SLOT_BYTES);
+    ByteBuffer header = ByteBuffer.allocate (RlweKeyStore.HEADER_BYTES);
+    long key;
+
+    for (i = 0; i < count; i++) {
+      key = id.applyAsLong (i);
+      slot = RlweKeyStore.hash (key) & (slots - 1);
+      while (table.getInt (slot * RlweKeyStore.SLOT_BYTES + 8) != 0) {
+	if (table.getLong (slot * RlweKeyStore.SLOT_BYTES) == key)
+	  throw new IOException ("Duplicate key id " + key);
+	slot = (slot + 1) & (slots - 1);
+      }
+      table.putLong (slot * RlweKeyStore.SLOT_BYTES, key);
+      table.putInt (slot * RlweKeyStore.SLOT_BYTES + 8, i + 1);
+    }
+
+    while (table.hasRemaining ())
+      channel.write (table, position + table.position ());
+
+    header.putInt (RlweKeyStore.MAGIC).put (RlweKeyStore.VERSION).put (Constants.FOURIER);
+    header.putShort ((short) 0).putInt (count).putLong (position).putInt (slots);
+    header.clear ();
+    while (header.hasRemaining ())
+      channel.write (header, header.position ());
+
+    channel.force (true);
+  }
+}
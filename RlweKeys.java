@@ -12,12 +12,19 @@ package rlwe;
  **************************************************************************************************/
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
 
 class RlwePublicKey {
-  private RingElt key;
-  private byte domain;
+  // Public keys are immutable, so the encoding, hash and the key converted to the other domain
+  // are computed at most once and cached. The RingElt returned by getKey () must not be modified.
+  private final RingElt key;
+  private final byte domain;
+  private volatile byte[] encoded;
+  private volatile RlwePublicKey converted;
+  private int hash;
 
   public RlwePublicKey (RlwePrivateKey k, RingElt a) {
     RingElt e = Sample.getSample ();
@@ -51,8 +58,44 @@ class RlwePublicKey {
 
 
   public RlwePublicKey (byte[] inBytes) {
-    domain = inBytes[0];
-    key = new RingElt (Arrays.copyOfRange (inBytes, 1, inBytes.length));
+    this (inBytes, 0);
+  }
+
+
+  RlwePublicKey (byte[] inBytes, int offset) {
+    // Reads the encoding written by serialize () or serializeCompressed () starting at
+    // inBytes[offset]. The low nibble of the first byte is the domain and the high nibble the
+    // number of bits per coefficient of a compressed key, or zero for the full encoding. Throws
+    // IllegalArgumentException for a header serializeCompressed () would not have written, since
+    // a wider coefficient would read past the end of the key, and for an encoding cut short.
+    int bits;
+
+    if (offset < 0 || offset >= inBytes.length)
+      throw new IllegalArgumentException ("Public key is truncated");
+    bits = (inBytes[offset] >> 4) & 0xf;
+
+    domain = (byte) (inBytes[offset] & 0xf);
+    if (domain != Constants.FOURIER && domain != Constants.ORDINARY)
+      throw new IllegalArgumentException ("Unknown public key domain " + domain);
+    if (bits != 0 && (bits < Constants.MIN_COMPRESSED_BITS || bits > Constants.MAX_COMPRESSED_BITS))
+      throw new IllegalArgumentException ("Bad compressed public key width " + bits);
+    if (bits != 0 && domain != Constants.ORDINARY)
+      throw new IllegalArgumentException ("Compressed public keys must be in the ORDINARY domain");
+    if (inBytes.length - offset < (bits == 0 ? Constants.numKeyBytes : compressedBytes (bits)))
+      throw new IllegalArgumentException ("Public key is truncated");
+
+    if (bits == 0)
+      key = new RingElt (ByteBuffer.wrap (inBytes), offset + 1);
+    else
+      key = new RingElt (inBytes, offset + 1, bits);
+  }
+
+
+  private RlwePublicKey (RingElt b, byte dom, RlwePublicKey other) {
+    // Takes ownership of b; other is the same key in the other domain
+    key = b;
+    domain = dom;
+    converted = other;
   }
 
 
@@ -66,37 +109,119 @@ class RlwePublicKey {
   }
 
 
-  public void toFourierDomain () {
-    if (domain == Constants.ORDINARY) {
-      key.ntt ();
-      key.multByConst (27);                     // Account for modular reduction optimizations
-      domain = Constants.FOURIER;
-    }
+  // Returns this key in the Fourier domain: this if it already is, else a cached conversion
+  public RlwePublicKey toFourierDomain () {
+    return convert (Constants.FOURIER);
   }
 
 
-  public void fromFourierDomain () {
-    if (domain == Constants.FOURIER) {
-      key.nttInv();
-      key.multByConst (27);                     // Account for modular reduction optimizations
-      domain = Constants.ORDINARY;
+  // Returns this key in the ordinary domain: this if it already is, else a cached conversion
+  public RlwePublicKey fromFourierDomain () {
+    return convert (Constants.ORDINARY);
+  }
+
+
+  private RlwePublicKey convert (byte target) {
+    DomainConversionEvent event = new DomainConversionEvent ();
+    RlwePublicKey k = converted;
+    RingElt b;
+
+    if (domain == target)
+      return this;
+
+    event.begin ();
+    if (k == null) {
+      b = new RingElt (key);
+      if (target == Constants.FOURIER)
+	b.ntt ();
+      else
+	b.nttInv ();
+      b.multByConst (27);                       // Account for modular reduction optimizations
+
+      k = new RlwePublicKey (b, target, this);
+      converted = k;
+      RlweMetrics.count (RlweMetrics.Counter.DOMAIN_CONVERSIONS);
+      event.commit (target, false);
+    } else {
+      event.commit (target, true);
     }
+
+    return k;
   }
     
 
   public byte[] serialize () {
-    byte[] kba = key.toByteArray();
-    byte[] ba = new byte[kba.length + 1];
-    
-    ba[0] = domain;
-    System.arraycopy (kba, 0, ba, 1, kba.length);
-    
+    return encoded().clone ();
+  }
+
+
+  void serialize (byte[] out, int offset) {
+    System.arraycopy (encoded (), 0, out, offset, Constants.numKeyBytes);
+  }
+
+
+  void serialize (ByteBuffer out, int offset) {
+    out.put (offset, encoded ());
+  }
+
+
+  // Lossy encoding of an ORDINARY-domain key with each coefficient rounded to the given number of
+  // bits, in compressedBytes (bits) bytes. The rounding error adds to the noise the reconciliation
+  // has to absorb, so fewer bits raise the failure rate; FailureEstimator -compress measures it.
+  // Keys in the Fourier domain cannot be compressed: a small rounding error there is no longer
+  // small once transformed back.
+  public byte[] serializeCompressed (int bits) {
+    if (domain != Constants.ORDINARY)
+      throw new IllegalStateException ("Only ORDINARY-domain keys can be compressed");
+    if (bits < Constants.MIN_COMPRESSED_BITS || bits > Constants.MAX_COMPRESSED_BITS)
+      throw new IllegalArgumentException ("Cannot compress to " + bits + " bits");
+
+    byte[] ba = new byte[compressedBytes (bits)];
+    ba[0] = (byte) (domain | bits << 4);
+    key.packCompressed (ba, 1, bits);
     return ba;
   }
 
 
-  public int hashcode () {
-    return Arrays.hashCode (serialize());
+  static int compressedBytes (int bits) {
+    return 1 + Constants.N * bits / 8;
+  }
+
+
+  private byte[] encoded () {
+    byte[] ba = encoded;
+
+    if (ba == null) {
+      ba = new byte[Constants.numKeyBytes];
+      ba[0] = domain;
+      key.pack (ByteBuffer.wrap (ba), 1);
+      encoded = ba;
+    }
+
+    return ba;
+  }
+
+
+  // Keys are equal when their encodings are; the same key in different domains is not equal.
+  // The comparison takes the same time wherever the encodings differ.
+  public boolean equals (Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof RlwePublicKey))
+      return false;
+    return MessageDigest.isEqual (encoded (), ((RlwePublicKey) o).encoded ());
+  }
+
+
+  public int hashCode () {
+    int h = hash;
+
+    if (h == 0) {
+      h = Arrays.hashCode (encoded ());
+      hash = h;
+    }
+
+    return h;
   }
 }
 
@@ -122,19 +247,25 @@ class RlwePrivateKey {
 
   public RlwePrivateKey (byte[] inBytes) {
     domain = inBytes[0];
-    s = new RingElt (Arrays.copyOfRange (inBytes, 1, inBytes.length));
+    s = new RingElt (ByteBuffer.wrap (inBytes), 1);
   }
 
 
   public RingElt getS () {
     return s;
   }
+
+
+  public byte getDomain () {
+    return domain;
+  }
   
 
   public void toFourierDomain () {
     if (domain == Constants.ORDINARY) {
       s.ntt();
       domain = Constants.FOURIER;
+      RlweMetrics.count (RlweMetrics.Counter.DOMAIN_CONVERSIONS);
     }
   }
 
@@ -143,16 +274,16 @@ class RlwePrivateKey {
     if (domain == Constants.FOURIER) {
       s.nttInv();
       domain = Constants.ORDINARY;
+      RlweMetrics.count (RlweMetrics.Counter.DOMAIN_CONVERSIONS);
     }
   }
 
   
   public byte[] serialize () {
-    byte[] sba = s.toByteArray();
-    byte[] ba = new byte[sba.length + 1];
+    byte[] ba = new byte[Constants.numKeyBytes];
     
     ba[0] = domain;
-    System.arraycopy (sba, 0, ba, 1, sba.length);
+    s.pack (ByteBuffer.wrap (ba), 1);
     
     return ba;
   }
@@ -165,52 +296,77 @@ class RlweKeyPair {
 
 
   public RlweKeyPair (RlwePrivateKey prKey, RingElt a, byte transmitDomain) {
+    KeyPairEvent event = new KeyPairEvent ();
+    event.begin ();
+
     privKey = prKey;
     privKey.toFourierDomain();
     pubKey = new RlwePublicKey (prKey, a);
 
     if (transmitDomain == Constants.ORDINARY)
-      pubKey.fromFourierDomain();
+      pubKey = pubKey.fromFourierDomain();
+
+    event.commit (transmitDomain, false);
   }
 
 
   public RlweKeyPair (RlwePrivateKey prKey, RingElt e, RingElt a, byte transmitDomain) {
+    KeyPairEvent event = new KeyPairEvent ();
+    event.begin ();
+
     privKey = prKey;
     privKey.toFourierDomain();
     pubKey = new RlwePublicKey (prKey, e, a);
 
     if (transmitDomain == Constants.ORDINARY) 
-      pubKey.fromFourierDomain();
+      pubKey = pubKey.fromFourierDomain();
+
+    event.commit (transmitDomain, false);
   }
 
   
   public RlweKeyPair (byte[] inKey, RingElt a, byte transmitDomain) {
+    KeyPairEvent event = new KeyPairEvent ();
+    event.begin ();
+
     privKey = new RlwePrivateKey (inKey);
     privKey.toFourierDomain();
     pubKey = new RlwePublicKey (privKey, a);
 
     if (transmitDomain == Constants.ORDINARY) 
-      pubKey.fromFourierDomain();
+      pubKey = pubKey.fromFourierDomain();
+
+    event.commit (transmitDomain, false);
   }
 
   
   public RlweKeyPair (byte[] inKey, RingElt e, RingElt a, byte transmitDomain) {
+    KeyPairEvent event = new KeyPairEvent ();
+    event.begin ();
+
     privKey = new RlwePrivateKey (inKey);
     privKey.toFourierDomain();
     pubKey = new RlwePublicKey (privKey, e, a);
 
     if (transmitDomain == Constants.ORDINARY) 
-      pubKey.fromFourierDomain();
+      pubKey = pubKey.fromFourierDomain();
+
+    event.commit (transmitDomain, false);
   }
   
 
   public RlweKeyPair (RingElt a, byte transmitDomain) {
+    KeyPairEvent event = new KeyPairEvent ();
+    event.begin ();
+
     privKey = new RlwePrivateKey ();
     privKey.toFourierDomain();
     pubKey = new RlwePublicKey (privKey, a);
 
     if (transmitDomain == Constants.ORDINARY) 
-      pubKey.fromFourierDomain();
+      pubKey = pubKey.fromFourierDomain();
+
+    event.commit (transmitDomain, false);
   }
 
 
@@ -224,11 +380,24 @@ class RlweKeyPair {
   }
 
 
-  // Generate a new public key with the same private key but new error term
+  private RlweKeyPair (RlwePrivateKey prKey, RlwePublicKey pubKey) {
+    privKey = prKey;
+    this.pubKey = pubKey;
+  }
+
+
+  // Generate a new public key with the same private key but new error term. This changes the
+  // pair in place; readers on other threads should be handed a pair from rerandomized () instead.
   public void genNewPubKey (RingElt a) {
-    byte domain = pubKey.getDomain ();
-    pubKey = new RlwePublicKey (privKey, a);
-    if (domain == Constants.ORDINARY)
-      pubKey.fromFourierDomain ();
+    pubKey = rerandomized(a).pubKey;
+  }
+
+
+  // Returns a new pair with the same private key and a fresh public key in the same domain
+  public RlweKeyPair rerandomized (RingElt a) {
+    RlwePublicKey k = new RlwePublicKey (privKey, a);
+    if (pubKey.getDomain () == Constants.ORDINARY)
+      k = k.fromFourierDomain ();
+    return new RlweKeyPair (privKey, k);
   }
 }
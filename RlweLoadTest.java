@@ -0,0 +1,362 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Load generator for capacity planning: N initiators run complete handshakes against M responder
+ * workers over loopback TCP or in-memory pipes, using the framed protocol of RlweHandshake.
+ *
+ * Arrivals are open-loop: each initiator draws Poisson arrival times for its share of the offered
+ * rate up front and starts a handshake when each one falls due, whether or not earlier ones have
+ * finished. Latency is measured from the intended start, not from when the initiator got round to
+ * sending, so a saturated responder shows up as growing latency instead of as a lower offered load
+ * (coordinated omission). Handshakes still outstanding when the drain period ends are recorded at
+ * that time and reported as incomplete.
+ *
+ * Each responder worker owns a Selector and a share of the connections; each initiator owns one
+ * connection and a thread. With -budget, the responders share an RlweAdmission controller with
+ * that many cores, and handshakes it turns away are counted as rejected rather than timed. One
+ * line is printed per responder worker count:
+ *
+ *   java rlwe.LoadTest [-initiators n] [-responders 1,2,4] [-rate per-second] [-duration s]
+ *                      [-warmup s] [-transport tcp|pipe] [-budget cores]
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+class LoadTest {
+  private final int initiators;
+  private final double rate;
+  private final long warmupNanos;
+  private final long durationNanos;
+  private final boolean tcp;
+  private final double budget;
+
+
+  // One side of a connection: the handshake state and the channels it reads and writes. For TCP
+  // both directions are the same channel and share a selection key.
+  static class Endpoint {
+    SelectableChannel in, out;
+    SelectionKey readKey, writeKey;
+    RlweHandshake handshake;
+
+
+    void register (Selector sel) throws IOException {
+      readKey = in.register (sel, SelectionKey.OP_READ, this);
+      writeKey = out == in ? readKey : out.register (sel, 0, this);
+    }
+
+
+    // Asks for OP_WRITE only while output is queued
+    void updateInterest () {
+      int w = handshake.hasPendingWrites () ? SelectionKey.OP_WRITE : 0;
+
+      if (writeKey == readKey)
+	readKey.interestOps (SelectionKey.OP_READ | w);
+      else
+	writeKey.interestOps (w);
+    }
+
+
+    // Returns false at end of stream
+    boolean service (SelectionKey key) throws IOException {
+      if (key.isValid () && key.isWritable ())
+	handshake.flush ();
+      if (key == readKey && key.isValid () && key.isReadable ()
+	  && handshake.read ((ReadableByteChannel) in) < 0)
+	return false;
+      updateInterest ();
+      return true;
+    }
+  }
+
+
+  static class Result {
+    final Histogram latency = new Histogram ();
+    final AtomicLong completedInWindow = new AtomicLong ();
+    final AtomicLong incomplete = new AtomicLong ();
+    final AtomicLong rejected = new AtomicLong ();
+  }
+
+
+  // A budget of 0 turns admission control off
+  LoadTest (int initiators, double rate, long warmupNanos, long durationNanos, boolean tcp,
+	    double budget) {
+    this.initiators = initiators;
+    this.rate = rate;
+    this.warmupNanos = warmupNanos;
+    this.durationNanos = durationNanos;
+    this.tcp = tcp;
+    this.budget = budget;
+  }
+
+
+  Result run (int responders) throws Exception {
+    RlweAdmission admission = budget > 0
+      ? RlweAdmission.install (budget, TimeUnit.MILLISECONDS.toNanos (10)) : null;
+    Endpoint[][] conns = connect (admission);
+    Selector[] selectors = new Selector[responders];
+    List<Thread> workers = new ArrayList<Thread> ();
+    List<Thread> clients = new ArrayList<Thread> ();
+    Result result = new Result ();
+    long start = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (50);
+    int i;
+
+    for (i = 0; i < responders; i++)
+      selectors[i] = Selector.open ();
+    for (i = 0; i < initiators; i++)
+      conns[i][1].register (selectors[i % responders]);
+
+    for (i = 0; i < responders; i++) {
+      final Selector sel = selectors[i];
+      workers.add (thread ("rlwe-load-responder-" + i, () -> respond (sel)));
+    }
+    for (i = 0; i < initiators; i++) {
+      final Endpoint e = conns[i][0];
+      final long seed = i;
+      clients.add (thread ("rlwe-load-initiator-" + i, () -> initiate (e, start, seed, result)));
+    }
+
+    for (Thread t : clients)
+      t.join ();
+    for (Thread t : workers)
+      t.interrupt ();
+    for (Selector sel : selectors)
+      sel.wakeup ();
+    for (Thread t : workers)
+      t.join ();
+
+    for (Endpoint[] c : conns)
+      for (Endpoint e : c) {
+	e.in.close ();
+	e.out.close ();
+      }
+    for (Selector sel : selectors)
+      sel.close ();
+    if (admission != null)
+      admission.uninstall ();
+
+    return result;
+  }
+
+
+  private Endpoint[][] connect (RlweAdmission admission) throws IOException {
+    Endpoint[][] conns = new Endpoint[initiators][];
+    RlweKeyExchange kex = new RlweKeyExchange ();
+    ServerSocketChannel server = null;
+
+    if (tcp)
+      server = ServerSocketChannel.open ().bind (new InetSocketAddress (InetAddress
+									 .getLoopbackAddress (), 0));
+
+    try {
+      for (int i = 0; i < initiators; i++) {
+	Endpoint init = new Endpoint (), resp = new Endpoint ();
+
+	if (tcp) {
+	  SocketChannel client = SocketChannel.open (server.getLocalAddress ());
+	  SocketChannel accepted = server.accept ();
+	  client.setOption (StandardSocketOptions.TCP_NODELAY, true);
+	  accepted.setOption (StandardSocketOptions.TCP_NODELAY, true);
+	  init.in = init.out = client;
+	  resp.in = resp.out = accepted;
+	} else {
+	  Pipe toResp = Pipe.open (), toInit = Pipe.open ();
+	  init.in = toInit.source ();
+	  init.out = toResp.sink ();
+	  resp.in = toResp.source ();
+	  resp.out = toInit.sink ();
+	}
+
+	init.in.configureBlocking (false);
+	init.out.configureBlocking (false);
+	resp.in.configureBlocking (false);
+	resp.out.configureBlocking (false);
+
+	// Capabilities are left off so every session uses the same transmit domain
+	init.handshake = new RlweInitiator (kex, (GatheringByteChannel) init.out, (byte) 0);
+	resp.handshake = new RlweResponder (kex, (GatheringByteChannel) resp.out, (byte) 0, null,
+					    admission);
+	conns[i] = new Endpoint[] {init, resp};
+      }
+    } finally {
+      if (server != null)
+	server.close ();
+    }
+
+    return conns;
+  }
+
+
+  private static Thread thread (String name, Task task) {
+    Thread t = new Thread (() -> {
+	try {
+	  task.run ();
+	} catch (Exception e) {
+	  throw new IllegalStateException (e);
+	}
+      }, name);
+    t.setDaemon (true);
+    t.start ();
+    return t;
+  }
+
+
+  interface Task {
+    void run () throws Exception;
+  }
+
+
+  private static void respond (Selector sel) throws IOException {
+    Iterator<SelectionKey> it;
+    SelectionKey key;
+
+    while (!Thread.currentThread().isInterrupted ()) {
+      sel.select (100);
+      for (it = sel.selectedKeys().iterator (); it.hasNext (); ) {
+	key = it.next ();
+	it.remove ();
+	if (!((Endpoint) key.attachment ()).service (key))
+	  key.cancel ();
+      }
+    }
+  }
+
+
+  private void initiate (Endpoint e, long start, long seed, Result result) throws IOException {
+    SplittableRandom rnd = new SplittableRandom (seed);
+    RlweInitiator initiator = (RlweInitiator) e.handshake;
+    Map<Integer, Long> outstanding = new HashMap<Integer, Long> ();
+    double meanGap = 1e9 * initiators / rate;
+    long measureStart = start + warmupNanos, end = measureStart + durationNanos;
+    long drainEnd = end + Math.max (TimeUnit.SECONDS.toNanos (2), durationNanos);
+    long next = start + gap (rnd, meanGap), now, wait;
+    Iterator<Map.Entry<Integer, Long>> it;
+    Map.Entry<Integer, Long> s;
+
+    try (Selector sel = Selector.open ()) {
+      e.register (sel);
+
+      while ((now = System.nanoTime ()) < drainEnd && (next < end || !outstanding.isEmpty ())) {
+	while (next <= now && next < end) {
+	  outstanding.put (initiator.start (), next);
+	  next += gap (rnd, meanGap);
+	}
+	e.updateInterest ();
+
+	wait = (next < end ? Math.min (next, drainEnd) : drainEnd) - now;
+	if (wait >= 1000000) {
+	  sel.select (wait / 1000000);
+	} else {
+	  sel.selectNow ();
+	  if (sel.selectedKeys().isEmpty () && wait > 0)
+	    LockSupport.parkNanos (wait);
+	}
+
+	for (SelectionKey key : sel.selectedKeys ())
+	  if (!e.service (key))
+	    return;
+	sel.selectedKeys().clear ();
+
+	now = System.nanoTime ();
+	for (it = outstanding.entrySet().iterator (); it.hasNext (); ) {
+	  s = it.next ();
+	  if (initiator.isComplete (s.getKey ())) {
+	    initiator.getSecret (s.getKey ());
+	    record (result, s.getValue (), now, measureStart, end);
+	    it.remove ();
+	  } else if (initiator.getRetryAfter (s.getKey ()) >= 0) {
+	    if (s.getValue () >= measureStart && s.getValue () < end)
+	      result.rejected.incrementAndGet ();
+	    it.remove ();
+	  }
+	}
+      }
+    }
+
+    for (long intended : outstanding.values ()) {
+      record (result, intended, drainEnd, measureStart, end);
+      if (intended >= measureStart)
+	result.incomplete.incrementAndGet ();
+    }
+  }
+
+
+  private static long gap (SplittableRandom rnd, double mean) {
+    return (long) (-mean * Math.log (1 - rnd.nextDouble ()));
+  }
+
+
+  private static void record (Result r, long intended, long done, long measureStart, long end) {
+    if (intended >= measureStart)
+      r.latency.record (done - intended);
+    if (done >= measureStart && done < end)
+      r.completedInWindow.incrementAndGet ();
+  }
+
+
+  public static void main (String[] args) throws Exception {
+    int i, initiators = 4;
+    int[] responders = {1, 2, 4};
+    double rate = 500, warmup = 2, duration = 5, budget = 0;
+    boolean tcp = true;
+
+    for (i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+      case "-initiators": initiators = Integer.parseInt (args[i + 1]); break;
+      case "-rate":       rate = Double.parseDouble (args[i + 1]); break;
+      case "-duration":   duration = Double.parseDouble (args[i + 1]); break;
+      case "-warmup":     warmup = Double.parseDouble (args[i + 1]); break;
+      case "-transport":  tcp = !args[i + 1].equalsIgnoreCase ("pipe"); break;
+      case "-budget":     budget = Double.parseDouble (args[i + 1]); break;
+      case "-responders":
+	String[] list = args[i + 1].split (",");
+	responders = new int[list.length];
+	for (int j = 0; j < list.length; j++)
+	  responders[j] = Integer.parseInt (list[j].trim ());
+	break;
+      default:
+	throw new IllegalArgumentException ("Unknown option " + args[i]);
+      }
+    }
+
+    LoadTest test = new LoadTest (initiators, rate, (long) (warmup * 1e9), (long) (duration * 1e9),
+				  tcp, budget);
+
+    System.out.printf ("%d initiators over %s, offered %.0f handshakes/s, %.0f s measured after "
+		       + "%.0f s warm-up, %d CPUs%n", initiators, tcp ? "loopback TCP" : "pipes",
+		       rate, duration, warmup, Runtime.getRuntime().availableProcessors ());
+    System.out.printf ("%10s %12s %10s %10s %10s %11s %9s%n", "responders", "handshakes/s",
+		       "p50 ms", "p99 ms", "p999 ms", "incomplete", "rejected");
+
+    for (int m : responders) {
+      Result r = test.run (m);
+      Histogram.Snapshot h = r.latency.snapshot ();
+      System.out.printf ("%10d %12.0f %10.2f %10.2f %10.2f %11d %9d%n", m,
+			 r.completedInWindow.get () / duration, h.percentile (0.5) / 1e6,
+			 h.percentile (0.99) / 1e6, h.percentile (0.999) / 1e6, r.incomplete.get (),
+			 r.rejected.get ());
+    }
+  }
+}
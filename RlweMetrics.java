@@ -0,0 +1,220 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Instrumentation for the key exchange. Phases of the computation report their latency and a few
+ * events are counted; both go to the installed Recorder. Until a recorder is installed every probe
+ * reduces to a read of one static field, so the cost in production is negligible when disabled.
+ *
+ * HistogramRecorder keeps a lock-free log-linear histogram per phase (HDR style: power of two
+ * buckets, each split into 32 linear sub-buckets, so values are recorded to within about 3%) and
+ * LongAdder counters, and can be snapshotted at any time for export.
+ *
+ **************************************************************************************************/
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+class RlweMetrics {
+
+  enum Phase { SAMPLE, NTT, NTT_INV, POINTWISE_MULT, HELP_REC, REC, SERIALIZE, DESERIALIZE }
+
+  // AGREEMENTS counts each side's half of an exchange, so one complete exchange counts twice.
+  // MISMATCHES is counted only by harnesses that hold both sides' secrets (RlweTest,
+  // FailureEstimator): the protocol has no key confirmation, so the library cannot see a
+  // mismatch, and the counter reads 0 in production.
+  enum Counter { AGREEMENTS, DOMAIN_CONVERSIONS, MISMATCHES }
+
+
+  interface Recorder {
+    void recordPhase (Phase phase, long nanos);
+    void increment (Counter counter);
+  }
+
+
+  private static volatile Recorder recorder;
+
+
+  static void install (Recorder r) {
+    recorder = r;
+  }
+
+
+  static Recorder installed () {
+    return recorder;
+  }
+
+
+  // Returns a start timestamp, or 0 when no recorder is installed
+  static long start () {
+    if (recorder == null)
+      return 0;
+    return System.nanoTime ();
+  }
+
+
+  static void stop (Phase phase, long startTime) {
+    Recorder r = recorder;
+    if (r != null && startTime != 0)
+      r.recordPhase (phase, System.nanoTime () - startTime);
+  }
+
+
+  static void count (Counter counter) {
+    Recorder r = recorder;
+    if (r != null)
+      r.increment (counter);
+  }
+}
+
+
+class Histogram {
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = Long.SIZE - SUB_BUCKET_BITS + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray (BUCKETS * SUB_BUCKETS);
+  private final LongAdder total = new LongAdder ();
+  private final LongAdder sum = new LongAdder ();
+
+
+  void record (long value) {
+    if (value < 0)
+      value = 0;
+    counts.incrementAndGet (index (value));
+    total.increment ();
+    sum.add (value);
+  }
+
+
+  static int index (long value) {
+    // Values below 2 * SUB_BUCKETS are exact. Above that, value is shifted down until it lies in
+    // [SUB_BUCKETS, 2 * SUB_BUCKETS) and the shift selects the bucket.
+    int shift = Math.max (0, Long.SIZE - Long.numberOfLeadingZeros (value) - SUB_BUCKET_BITS - 1);
+    return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+  }
+
+
+  static long lowestValue (int index) {
+    int shift = Math.max (0, (index >> SUB_BUCKET_BITS) - 1);
+    return (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+  }
+
+
+  Snapshot snapshot () {
+    long[] c = new long[counts.length ()];
+    for (int i = 0; i < c.length; i++)
+      c[i] = counts.get (i);
+    return new Snapshot (c, total.sum (), sum.sum ());
+  }
+
+
+  void reset () {
+    for (int i = 0; i < counts.length (); i++)
+      counts.set (i, 0);
+    total.reset ();
+    sum.reset ();
+  }
+
+
+  static class Snapshot {
+    final long[] counts;
+    final long count;
+    final long sum;
+
+
+    Snapshot (long[] counts, long count, long sum) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+    }
+
+
+    double mean () {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+
+    // Lower bound of the bucket holding the given quantile, 0 <= q <= 1
+    long percentile (double q) {
+      long rank = (long) Math.ceil (q * count), seen = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+	seen += counts[i];
+	if (seen >= rank && seen > 0)
+	  return lowestValue (i);
+      }
+
+      return 0;
+    }
+  }
+}
+
+
+class HistogramRecorder implements RlweMetrics.Recorder {
+  private final EnumMap<RlweMetrics.Phase, Histogram> phases;
+  private final EnumMap<RlweMetrics.Counter, LongAdder> counters;
+
+
+  HistogramRecorder () {
+    phases = new EnumMap<RlweMetrics.Phase, Histogram> (RlweMetrics.Phase.class);
+    counters = new EnumMap<RlweMetrics.Counter, LongAdder> (RlweMetrics.Counter.class);
+
+    for (RlweMetrics.Phase p : RlweMetrics.Phase.values ())
+      phases.put (p, new Histogram ());
+    for (RlweMetrics.Counter c : RlweMetrics.Counter.values ())
+      counters.put (c, new LongAdder ());
+  }
+
+
+  public void recordPhase (RlweMetrics.Phase phase, long nanos) {
+    phases.get(phase).record (nanos);
+  }
+
+
+  public void increment (RlweMetrics.Counter counter) {
+    counters.get(counter).increment ();
+  }
+
+
+  Histogram.Snapshot snapshot (RlweMetrics.Phase phase) {
+    return phases.get(phase).snapshot ();
+  }
+
+
+  long count (RlweMetrics.Counter counter) {
+    return counters.get(counter).sum ();
+  }
+
+
+  void reset () {
+    for (Histogram h : phases.values ())
+      h.reset ();
+    for (LongAdder a : counters.values ())
+      a.reset ();
+  }
+
+
+  // One line per phase and counter, suitable for logs or a scrape endpoint
+  String export () {
+    StringBuilder sb = new StringBuilder ();
+    Histogram.Snapshot s;
+
+    for (Map.Entry<RlweMetrics.Phase, Histogram> e : phases.entrySet ()) {
+      s = e.getValue().snapshot ();
+      sb.append (String.format ("rlwe_phase{phase=\"%s\"} count=%d mean_ns=%.0f p50_ns=%d "
+				+ "p99_ns=%d p999_ns=%d%n", e.getKey().name().toLowerCase (),
+				s.count, s.mean (), s.percentile (0.5), s.percentile (0.99),
+				s.percentile (0.999)));
+    }
+
+    for (Map.Entry<RlweMetrics.Counter, LongAdder> e : counters.entrySet ())
+      sb.append (String.format ("rlwe_%s_total %d%n", e.getKey().name().toLowerCase (),
+				e.getValue().sum ()));
+
+    return sb.toString ();
+  }
+}
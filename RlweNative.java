@@ -0,0 +1,67 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Bindings for the optional native kernels in rlwe_native.c, used by the NATIVE RingElt backend.
+ *
+ * The library is looked for once, when this class is first used: the file named by
+ * -Drlwe.native.path if given, otherwise librlwe on java.library.path. If it cannot be loaded,
+ * isAvailable () is false, the reason is kept for AutoTune's report, and nothing else changes;
+ * the backend is simply never selected.
+ *
+ * The kernels are bound through JNI rather than the Foreign Function & Memory API, which is
+ * still an incubator module on the JDK 17 this code targets. They work in place on the Java
+ * arrays through the JNI critical calls, so no segments are copied in or out.
+ *
+ **************************************************************************************************/
+
+
+class Native {
+  static final String PATH_PROPERTY = "rlwe.native.path";
+
+  private static final String unavailable;
+
+
+  static {
+    String reason = null, path = System.getProperty (PATH_PROPERTY);
+
+    try {
+      if (path != null)
+	System.load (path);
+      else
+	System.loadLibrary ("rlwe");
+      init (Constants.PSI_REV, Constants.OMEGA_INV_REV, Constants.N_INV_MULTIPLIER,
+	    Constants.OMEGA_INV_MULTIPLIER);
+    } catch (UnsatisfiedLinkError | SecurityException e) {
+      reason = e.getMessage ();
+    }
+
+    unavailable = reason;
+  }
+
+
+  static boolean isAvailable () {
+    return unavailable == null;
+  }
+
+
+  // Why the library could not be loaded, or null if it was
+  static String unavailableReason () {
+    return unavailable;
+  }
+
+
+  private static native void init (long[] psiRev, long[] omegaInvRev, long nInvMultiplier,
+				   long omegaInvMultiplier);
+
+  static native void ntt (long[] coeff);
+
+  static native void nttInv (long[] coeff);
+
+  // c = a * b + d, or a * b when d is null; c may be any of the operands
+  static native void pointwiseMultAdd (long[] a, long[] b, long[] d, long[] c);
+
+  static native void helpRec (long[] v, byte[] randomBits, int[] rdata);
+
+  static native void rec (long[] v, int[] rdata, byte[] key, int keyOffset);
+}
@@ -0,0 +1,213 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Bulk provisioning of static key pairs into a key store (see RlweKeyStore for the format).
+ *
+ * Key generation is split into chunks of consecutive records that run on a fork/join pool. Each
+ * worker thread has its own RlweKeyExchange and SecureRandom, so workers share nothing but the
+ * public element a; the workspace is already per thread. A chunk encodes its records straight
+ * into a direct buffer, and the calling thread writes the finished chunks to the file in order
+ * with one positional write each, keeping a bounded window of chunks in flight so that
+ * generation and disk writes overlap.
+ *
+ * Every CHECKPOINT_CHUNKS chunks the file is forced and the number of records on disk is written
+ * to a checkpoint file next to the store. If the run is interrupted, calling provision () again
+ * with the same arguments truncates the store to the checkpoint and carries on from there. The
+ * index and header are only written once all records are on disk, so a partial store never
+ * opens.
+ *
+ *   java rlwe.RlweProvisioner file count [first-id]
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+class RlweProvisioner {
+  static final int CHUNK_RECORDS = 256;
+  static final int CHECKPOINT_CHUNKS = 64;
+
+  private static final int CHECKPOINT_MAGIC = 0x524c4350;     // "RLCP"
+  private static final int CHECKPOINT_BYTES = 20;
+
+  private final ForkJoinPool pool;
+  private final int chunkRecords;
+  private final ThreadLocal<RlweKeyExchange> workers;
+
+
+  RlweProvisioner (RlweKeyExchange kex, ForkJoinPool pool, int chunkRecords) {
+    RingElt a = kex.getA ();
+
+    this.pool = pool;
+    this.chunkRecords = chunkRecords;
+    workers = ThreadLocal.withInitial (() -> new RlweKeyExchange (a, Constants.FOURIER,
+								    Constants.FOURIER,
+								    new SecureRandom ()));
+  }
+
+
+  RlweProvisioner (RlweKeyExchange kex) {
+    this (kex, ForkJoinPool.commonPool (), CHUNK_RECORDS);
+  }
+
+
+  static Path checkpointFile (Path file) {
+    return file.resolveSibling (file.getFileName () + ".checkpoint");
+  }
+
+
+  // Writes count key pairs with ids firstId, firstId + 1, ... to file, resuming from its
+  // checkpoint if there is one for the same arguments. Returns the number of records generated.
+  public long provision (Path file, long firstId, int count) throws IOException {
+    return run (file, firstId, count, count);
+  }
+
+
+  // As above, but stops with a checkpoint once at least limit records are on disk
+  long run (Path file, long firstId, int count, int limit) throws IOException {
+    int window = 2 * pool.getParallelism ();
+    int done = readCheckpoint (file, firstId, count), start = done, next = done, n;
+    ArrayDeque<ForkJoinTask<ByteBuffer>> inFlight = new ArrayDeque<ForkJoinTask<ByteBuffer>> ();
+    ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer> ();
+    long position = RlweKeyStore.HEADER_BYTES + (long) done * RlweKeyStore.RECORD_BYTES;
+    ByteBuffer buf;
+    int chunks = 0;
+
+    // A fresh store is created owner-only; a resumed one was created that way by the first run
+    try (FileChannel ch = done == 0 ? RlweKeyStore.createPrivate (file)
+	 : FileChannel.open (file, StandardOpenOption.WRITE)) {
+      ch.truncate (position);
+      if (done == 0)                            // A zero header until the store is finished
+	write (ch, ByteBuffer.allocate (RlweKeyStore.HEADER_BYTES), 0);
+
+      try {
+	while (done < count && done - start < limit) {
+	  while (next < count && next - start < limit && inFlight.size () < window) {
+	    n = Math.min (chunkRecords, count - next);
+	    inFlight.add (submit (free.isEmpty () ? allocate () : free.poll (), firstId + next, n));
+	    next += n;
+	  }
+
+	  buf = inFlight.poll().join ();
+	  n = buf.remaining () / RlweKeyStore.RECORD_BYTES;
+	  write (ch, buf, position);
+	  position += (long) n * RlweKeyStore.RECORD_BYTES;
+	  done += n;
+	  free.add (buf);
+
+	  if (++chunks % CHECKPOINT_CHUNKS == 0 && done < count)
+	    checkpoint (ch, file, firstId, count, done);
+	}
+      } finally {
+	for (ForkJoinTask<ByteBuffer> t : inFlight) {
+	  t.quietlyJoin ();
+	  if (!t.isCompletedAbnormally ())
+	    free.add (t.getRawResult ());
+	}
+	for (ByteBuffer b : free) {                   // Don't leave private keys in native memory
+	  b.clear ();
+	  for (int i = 0; i < b.capacity (); i += 8)
+	    b.putLong (i, 0);
+	}
+      }
+
+      if (done < count) {
+	checkpoint (ch, file, firstId, count, done);
+      } else {
+	RlweKeyStoreWriter.finish (ch, position, count, i -> firstId + i);
+	Files.deleteIfExists (checkpointFile (file));
+      }
+    }
+
+    return done - start;
+  }
+
+
+  private ByteBuffer allocate () {
+    return ByteBuffer.allocateDirect (chunkRecords * RlweKeyStore.RECORD_BYTES);
+  }
+
+
+  private ForkJoinTask<ByteBuffer> submit (ByteBuffer buf, long firstId, int n) {
+    return pool.submit (() -> {
+	RlweKeyExchange kex = workers.get ();
+	RlweKeyPair keys;
+
+	for (int i = 0; i < n; i++) {
+	  keys = kex.generateKeyPair (Constants.FOURIER);
+	  RlweKeyStoreWriter.putRecord (buf, i * RlweKeyStore.RECORD_BYTES, firstId + i,
+					keys.getPublicKey (), keys.getPrivateKey ());
+	}
+	buf.clear().limit (n * RlweKeyStore.RECORD_BYTES);
+	return buf;
+      });
+  }
+
+
+  private static void write (FileChannel ch, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining ())
+      position += ch.write (buf, position);
+  }
+
+
+  private static void checkpoint (FileChannel ch, Path file, long firstId, int count, int done)
+    throws IOException {
+    Path cp = checkpointFile (file);
+    Path tmp = cp.resolveSibling (cp.getFileName () + ".tmp");
+    ByteBuffer b = ByteBuffer.allocate (CHECKPOINT_BYTES);
+
+    ch.force (false);                           // Records first, so the checkpoint never leads
+    b.putInt (CHECKPOINT_MAGIC).putLong (firstId).putInt (count).putInt (done);
+    Files.write (tmp, b.array ());
+    Files.move (tmp, cp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+
+  // Returns the records already on disk, or 0 if there is no checkpoint for these arguments
+  private static int readCheckpoint (Path file, long firstId, int count) throws IOException {
+    Path cp = checkpointFile (file);
+    ByteBuffer b;
+
+    if (!Files.exists (cp) || !Files.exists (file))
+      return 0;
+    b = ByteBuffer.wrap (Files.readAllBytes (cp));
+
+    if (b.remaining () != CHECKPOINT_BYTES || b.getInt (0) != CHECKPOINT_MAGIC
+	|| b.getLong (4) != firstId || b.getInt (12) != count)
+      return 0;
+    return (int) Math.max (0, Math.min (b.getInt (16), (Files.size (file)
+							 - RlweKeyStore.HEADER_BYTES)
+					      / RlweKeyStore.RECORD_BYTES));
+  }
+
+
+  public static void main (String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println ("usage: java rlwe.RlweProvisioner file count [first-id]");
+      System.exit (2);
+    }
+
+    Path file = Paths.get (args[0]);
+    int count = Integer.parseInt (args[1]);
+    long firstId = args.length > 2 ? Long.parseLong (args[2]) : 0;
+    RlweProvisioner p = new RlweProvisioner (new RlweKeyExchange ());
+    long start = System.nanoTime (), n = p.provision (file, firstId, count);
+    double seconds = (System.nanoTime () - start) / 1e9;
+
+    System.out.printf ("%d key pairs in %.2f s (%.0f/s, %.1f MB/s) on %d workers%n", n, seconds,
+		       n / seconds, n * RlweKeyStore.RECORD_BYTES / 1e6 / seconds,
+		       ForkJoinPool.commonPool().getParallelism ());
+  }
+}
@@ -17,6 +17,8 @@ import java.lang.System;
 import java.lang.Math;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 
 class RingElt {
@@ -24,6 +26,20 @@ class RingElt {
   static int modulus = Constants.Q;
   private long[] coeff;
 
+  // Implementation of the element-wise kernels (ringAdd, correction, multBy3). NATIVE replaces
+  // the transforms, pointwise products and reconciliation instead (see Native) and uses the
+  // scalar element-wise kernels. AutoTune sets the process-wide choice once; withBackend
+  // overrides it for one thread, so candidates can be checked while other threads keep running.
+  static final byte SCALAR = 0;
+  static final byte SWAR = 1;
+  static final byte NATIVE = 2;
+  private static volatile byte backend = SCALAR;
+  private static final ThreadLocal<byte[]> threadBackend = new ThreadLocal<byte[]> ();
+  private static final AtomicInteger overrides = new AtomicInteger ();   // withBackend calls
+
+  // Most elements nttInv (RingElt[], int, long[]) transforms together
+  static final int INTERLEAVE = 8;
+
   // Precomputed values to improve efficiency of number theoretic transforms
   private static long[] psiRev;     
   private static long[] omegaInvRev;   
@@ -67,6 +83,52 @@ class RingElt {
   }
 
 
+  public RingElt (ByteBuffer in, int offset) {
+    // Reads 1024 14-bit coefficients packed by pack (), four coefficients per 7 bytes
+    long w, startTime = RlweMetrics.start ();
+    int i, j;
+
+    coeff = new long[ringEltLen];
+
+    for (i = 0; i < ringEltLen; i += 4) {
+      w = 0;
+      for (j = 0; j < 7; j++)
+	w |= (long) (in.get (offset + j) & 0xff) << (8 * j);
+      offset += 7;
+
+      coeff[i]     = w & 0x3fff;
+      coeff[i + 1] = (w >> 14) & 0x3fff;
+      coeff[i + 2] = (w >> 28) & 0x3fff;
+      coeff[i + 3] = (w >> 42) & 0x3fff;
+    }
+
+    RlweMetrics.stop (RlweMetrics.Phase.DESERIALIZE, startTime);
+  }
+
+
+  public RingElt (byte[] in, int offset, int bits) {
+    // Reads 1024 coefficients compressed to the given number of bits by packCompressed (). Each
+    // value is mapped back to the middle of the range of coefficients that round to it, so the
+    // rounding error is centred on zero.
+    long acc = 0, t, mask = (1L << bits) - 1, half = 1L << (bits - 1);
+    int i, nacc = 0;
+
+    coeff = new long[ringEltLen];
+
+    for (i = 0; i < ringEltLen; i++) {
+      while (nacc < bits) {
+	acc |= (long) (in[offset++] & 0xff) << nacc;
+	nacc += 8;
+      }
+      t = acc & mask;
+      acc >>>= bits;
+      nacc -= bits;
+
+      coeff[i] = (t * modulus + half) >> bits;
+    }
+  }
+
+
   public static void initialize () {
     psiRev = Constants.PSI_REV;
     omegaInvRev = Constants.OMEGA_INV_REV;
@@ -79,7 +141,47 @@ class RingElt {
     return ringEltLen;
   }
 
+
+  static void setBackend (byte b) {
+    backend = b;
+  }
+
+
+  // This thread's backend: its withBackend override if there is one, otherwise the process-wide
+  // backend. The thread-local is only consulted while some thread has an override.
+  static byte getBackend () {
+    byte[] b;
+
+    if (overrides.get () != 0 && (b = threadBackend.get ()) != null)
+      return b[0];
+    return backend;
+  }
+
+
+  // Runs task with this thread's ring operations on backend b; other threads are unaffected
+  static <T> T withBackend (byte b, Supplier<T> task) {
+    byte[] saved = threadBackend.get ();
+
+    threadBackend.set (new byte[] {b});
+    overrides.incrementAndGet ();
+    try {
+      return task.get ();
+    } finally {
+      overrides.decrementAndGet ();
+      if (saved == null)
+	threadBackend.remove ();
+      else
+	threadBackend.set (saved);
+    }
+  }
+
   
+  // The backing array, for the native kernels
+  long[] coeffArray () {
+    return coeff;
+  }
+
+
   long getCoeff (int index) {
     if (index >= ringEltLen || index < 0)
       return 0;
@@ -104,6 +206,11 @@ class RingElt {
   }
   
 
+  void clear () {
+    Arrays.fill (coeff, 0);
+  }
+
+
   static long reduce12289 (long a) {
     long c0, c1;
 
@@ -123,8 +230,19 @@ class RingElt {
   
 
   RingElt ringAdd (RingElt a) {
-    RingElt c = new RingElt ();
+    // Assumes this is fully reduced and a has coefficients in [-q, q)
+    return ringAdd (a, new RingElt ());
+  }
+
+
+  RingElt ringAdd (RingElt a, RingElt c) {
+    // As above, writing the sum into c and returning it; c may be this or a
     long ci;
+
+    if (getBackend () == SWAR) {
+      Swar.ringAdd (coeff, a.coeff, c.coeff);
+      return c;
+    }
     
     for (int i = 0; i < ringEltLen; i++) {
       ci = coeff[i] + a.getCoeff(i);
@@ -137,8 +255,19 @@ class RingElt {
 
 
   RingElt pointwiseMult (RingElt a) {
-    RingElt c = new RingElt ();
-    long ci;
+    return pointwiseMult (a, new RingElt ());
+  }
+
+
+  RingElt pointwiseMult (RingElt a, RingElt c) {
+    // Writes the product into c and returns it; c may be this or a
+    long ci, startTime = RlweMetrics.start ();
+
+    if (getBackend () == NATIVE) {
+      Native.pointwiseMultAdd (coeff, a.coeff, null, c.coeff);
+      RlweMetrics.stop (RlweMetrics.Phase.POINTWISE_MULT, startTime);
+      return c;
+    }
     
     for (int i = 0; i < ringEltLen; i++) {
       ci = reduce12289 (coeff[i] * a.getCoeff(i));
@@ -146,13 +275,25 @@ class RingElt {
       c.setCoeff (i, ci);
     }
 
+    RlweMetrics.stop (RlweMetrics.Phase.POINTWISE_MULT, startTime);
     return c;
   }
 
 
   RingElt pointwiseMultAdd (RingElt a, RingElt b) {
-    RingElt c = new RingElt ();
-    long ci;
+    return pointwiseMultAdd (a, b, new RingElt ());
+  }
+
+
+  RingElt pointwiseMultAdd (RingElt a, RingElt b, RingElt c) {
+    // Writes this * a + b into c and returns it; c may be any of the operands
+    long ci, startTime = RlweMetrics.start ();
+
+    if (getBackend () == NATIVE) {
+      Native.pointwiseMultAdd (coeff, a.coeff, b.coeff, c.coeff);
+      RlweMetrics.stop (RlweMetrics.Phase.POINTWISE_MULT, startTime);
+      return c;
+    }
 
     for (int i = 0; i < ringEltLen; i++) {
       ci = reduce12289 (coeff[i] * a.getCoeff(i) + b.getCoeff(i));
@@ -160,13 +301,20 @@ class RingElt {
       c.setCoeff (i, ci);
     }
 
+    RlweMetrics.stop (RlweMetrics.Phase.POINTWISE_MULT, startTime);
     return c;
   }
 
 
   void ntt () {
     int m, i, j, j1, j2, k = ringEltLen;
-    long S, U, V;
+    long S, U, V, startTime = RlweMetrics.start ();
+
+    if (getBackend () == NATIVE) {
+      Native.ntt (coeff);
+      RlweMetrics.stop (RlweMetrics.Phase.NTT, startTime);
+      return;
+    }
 
     for (m = 1; m < ringEltLen; m = m << 1) {
       k = k >> 1;
@@ -187,12 +335,20 @@ class RingElt {
 
     for (i = 0; i < ringEltLen; i++)
       coeff[i] = reduce12289 (coeff[i]);
+
+    RlweMetrics.stop (RlweMetrics.Phase.NTT, startTime);
   }
 
 
   void nttInv () {
     int m, h, i, j, j1, j2, k = 1;
-    long S, U, V, temp;
+    long S, U, V, temp, startTime = RlweMetrics.start ();
+
+    if (getBackend () == NATIVE) {
+      Native.nttInv (coeff);
+      RlweMetrics.stop (RlweMetrics.Phase.NTT_INV, startTime);
+      return;
+    }
 
     for (m = ringEltLen; m > 2; m = m >> 1) {
       j1 = 0;
@@ -224,13 +380,72 @@ class RingElt {
 
     twoReduce ();
     correction ();
+
+    RlweMetrics.stop (RlweMetrics.Phase.NTT_INV, startTime);
+  }
+
+
+  static void nttInv (RingElt[] v, int n, long[] x) {
+    // Inverse NTT of v[0...n-1] at once, n <= INTERLEAVE, using x (at least n * ringEltLen long)
+    // as scratch. Coefficient j of v[p] is held at x[j*n + p], so each twiddle factor is loaded
+    // once for all n elements and the run of coefficients one twiddle applies to is contiguous
+    // and n times longer. The arithmetic is that of nttInv (), so the results are identical.
+    int m, h, i, j, j1, k = 1, p, a, b, end;
+    long S, U, V, startTime = RlweMetrics.start ();
+
+    for (p = 0; p < n; p++)
+      for (j = 0; j < ringEltLen; j++)
+	x[j * n + p] = v[p].coeff[j];
+
+    for (m = ringEltLen; m > 2; m = m >> 1) {
+      j1 = 0;
+      h = m >> 1;
+
+      for (i = 0; i < h; i++) {
+	S = omegaInvRev[h + i];
+	end = (j1 + k) * n;
+
+	for (a = j1 * n, b = end; a < end; a++, b++) {
+	  U = x[a];
+	  V = x[b];
+	  x[a] = U + V;
+	  x[b] = reduce12289 ((U - V) * S);
+	}
+
+	j1 = j1 + 2 * k;
+      }
+
+      k = k << 1;
+    }
+
+    for (a = 0, b = k * n; a < k * n; a++, b++) {
+      U = x[a];
+      V = x[b];
+      x[a] = reduce12289 ((U + V) * nInvMultiplier);
+      x[b] = reduce12289 ((U - V) * omegaInvMultiplier);
+    }
+
+    for (p = 0; p < n; p++) {
+      for (j = 0; j < ringEltLen; j++)
+	v[p].coeff[j] = x[j * n + p];
+      v[p].twoReduce ();
+      v[p].correction ();
+    }
+
+    RlweMetrics.stop (RlweMetrics.Phase.NTT_INV, startTime);
   }
 
 
   public void correction () {
+    // Assumes coefficients are in [-q, 2q)
     int i;
     long mask;
 
+    if (getBackend () == SWAR) {
+      Swar.correction (coeff);
+      return;
+    }
+
     for (i = 0; i < ringEltLen; i++) {
       mask = coeff[i] >> 15;
       coeff[i] += (modulus & mask) - modulus;
@@ -249,6 +464,11 @@ class RingElt {
   public void multBy3 () {
     // Assumes coefficients are positive and fully reduced
     long mask;
+
+    if (getBackend () == SWAR) {
+      Swar.multBy3 (coeff);
+      return;
+    }
     
     for (int i = 0; i < ringEltLen; i++) {
       coeff[i] = (coeff[i] << 1) + coeff[i];
@@ -262,13 +482,22 @@ class RingElt {
   }
 
     
-  public boolean equals (RingElt b) {
+  public boolean equals (Object o) {
+    // Compares every coefficient, so the time taken does not depend on where they differ
+    long diff = 0;
     int i;
 
+    if (!(o instanceof RingElt))
+      return false;
+
     for (i = 0; i < ringEltLen; i++) 
-      if (coeff[i] != b.getCoeff (i))
-	return false;
-    return true;
+      diff |= coeff[i] ^ ((RingElt) o).coeff[i];
+    return diff == 0;
+  }
+
+
+  public int hashCode () {
+    return Arrays.hashCode (coeff);
   }
 
     
@@ -296,6 +525,53 @@ class RingElt {
   }
 
 
+  void pack (ByteBuffer out, int offset) {
+    // Writes coefficients reduced to [0, q) as 14-bit values, four coefficients per 7 bytes
+    long w, startTime = RlweMetrics.start ();
+    int i, j;
+
+    for (i = 0; i < ringEltLen; i += 4) {
+      w = canonical (coeff[i]);
+      w |= canonical (coeff[i + 1]) << 14;
+      w |= canonical (coeff[i + 2]) << 28;
+      w |= canonical (coeff[i + 3]) << 42;
+
+      for (j = 0; j < 7; j++)
+	out.put (offset + j, (byte) (w >> (8 * j)));
+      offset += 7;
+    }
+
+    RlweMetrics.stop (RlweMetrics.Phase.SERIALIZE, startTime);
+  }
+
+
+  void packCompressed (byte[] out, int offset, int bits) {
+    // Rounds each coefficient c in [0, q) to round (c * 2^bits / q) mod 2^bits and writes the
+    // results as a little-endian bit string of 128 * bits bytes. Division by the constant q is
+    // compiled to a multiply and shift, so the time taken does not depend on the coefficients.
+    long acc = 0, t, mask = (1L << bits) - 1;
+    int i, nacc = 0;
+
+    for (i = 0; i < ringEltLen; i++) {
+      t = (((canonical (coeff[i]) << bits) + (modulus >> 1)) / Constants.Q) & mask;
+      acc |= t << nacc;
+      nacc += bits;
+
+      while (nacc >= 8) {
+	out[offset++] = (byte) acc;
+	acc >>>= 8;
+	nacc -= 8;
+      }
+    }
+  }
+
+
+  private static long canonical (long a) {
+    a %= modulus;
+    return a + (modulus & (a >> (Long.SIZE - 1)));
+  }
+
+
   public byte[] toByteArray () {
     ByteBuffer bb = ByteBuffer.allocate (ringEltLen * Integer.SIZE);
     for (int i = 0; i < ringEltLen; i++) 
@@ -6,37 +6,46 @@ package rlwe;
  *
  *************************************************************************************************/
 
-import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.Random;
 
 
 class Sample {
   static final int BINOMIAL_ITERATIONS = 16;
+  static final int SAMPLE_BYTES = Constants.N * BINOMIAL_ITERATIONS / 8;
 
 
   public static RingElt getSample () {
-    int i, j, b0, b1, offset, m = RingElt.getLength();
-    long[] s = new long[m];
-    Random rand = new Random ();
-    int numbits = m * BINOMIAL_ITERATIONS;
-    BigInteger randbits0 = new BigInteger (numbits, rand);
-    BigInteger randbits1 = new BigInteger (numbits, rand);
+    return getSample (new Random ());
+  }
+
+
+  public static RingElt getSample (Random rand) {
+    RingElt s = new RingElt ();
+    getSample (rand, s, Workspace.get().sampleBits);
+    return s;
+  }
 
-    for (i = 0; i < m; i++) {
-      offset = i * BINOMIAL_ITERATIONS;
-      for (j = 0; j < BINOMIAL_ITERATIONS; j++) {
-        b0 = boolToInt (randbits0.testBit (offset + j));
-        b1 = boolToInt (randbits1.testBit (offset + j));
-	s[i] += (long) b1 - b0;
-      }
-    }
 
-    return new RingElt (s);
-  }  
+  static void getSample (Random rand, RingElt out, byte[] bits) {
+    // Fills out with a centred binomial sample: each coefficient is the difference of the weights
+    // of two 16-bit strings. bits is scratch of 2 * SAMPLE_BYTES bytes and is zeroed before
+    // returning, since the random bits determine the sample. The bits are read as two big-endian
+    // BigIntegers of SAMPLE_BYTES bytes each, bit 16i upward for coefficient i, so a seeded
+    // generator gives the same samples as before.
+    int i, j, b0, b1, m = RingElt.getLength();
+    long startTime = RlweMetrics.start ();
 
+    rand.nextBytes (bits);
+
+    for (i = 0; i < m; i++) {
+      j = SAMPLE_BYTES - 2 - 2*i;
+      b0 = (bits[j] & 0xff) << 8 | (bits[j + 1] & 0xff);
+      b1 = (bits[SAMPLE_BYTES + j] & 0xff) << 8 | (bits[SAMPLE_BYTES + j + 1] & 0xff);
+      out.setCoeff (i, Integer.bitCount (b1) - Integer.bitCount (b0));
+    }
+    Arrays.fill (bits, (byte) 0);
 
-  private static int boolToInt (boolean b) {
-    if (b) return 1;
-    return 0;
-  }    
+    RlweMetrics.stop (RlweMetrics.Phase.SAMPLE, startTime);
+  }
 }
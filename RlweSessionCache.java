@@ -0,0 +1,199 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Server-side cache of resumption secrets, so a returning client can skip the lattice work.
+ *
+ * When a full handshake completes, both sides derive a resumption ticket from the shared secret
+ * with HKDF: a 16-byte id and a 32-byte resumption secret. The client keeps the ticket; the server
+ * keeps the secret here under the id. To resume, the client sends the id and a fresh nonce, the
+ * server answers with its own nonce, and both derive the new session secret from the resumption
+ * secret and the two nonces. Entries are single use: a lookup removes the entry, and the resumed
+ * session yields the next ticket, so a replayed RESUME frame finds nothing.
+ *
+ * Resumption does not confirm keys. The ticket id travels in clear, so anyone who sees it can
+ * send RESUME first and use the entry up. They learn nothing about the secret, but the server
+ * then counts a session neither side can use, and the real client's RESUME is refused and falls
+ * back to a full exchange. Callers that need proof the peer holds the secret must confirm it
+ * over the resumed session themselves.
+ *
+ * The cache is split into independently locked stripes, each a LinkedHashMap in insertion order
+ * holding at most its share of the capacity. Every entry lives for the same TTL, so the oldest
+ * entry of a stripe is always the first to expire; expired and evicted secrets are overwritten.
+ *
+ **************************************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+
+class ResumptionTicket {
+  static final int ID_BYTES = 16;
+
+  private static final byte[] ID_LABEL = "rlwe resumption id".getBytes (StandardCharsets.US_ASCII);
+  private static final byte[] SECRET_LABEL = "rlwe resumption".getBytes (StandardCharsets.US_ASCII);
+  private static final byte[] RESUME_LABEL = "rlwe resume".getBytes (StandardCharsets.US_ASCII);
+
+  final byte[] id;
+  final byte[] secret;
+
+
+  private ResumptionTicket (byte[] id, byte[] secret) {
+    this.id = id;
+    this.secret = secret;
+  }
+
+
+  // The ticket both sides derive from a session's shared secret
+  static ResumptionTicket derive (byte[] sessionSecret) {
+    try {
+      byte[] prk = Hkdf.extract (null, sessionSecret);
+      ResumptionTicket t = new ResumptionTicket (Hkdf.expand (prk, ID_LABEL, ID_BYTES),
+						 Hkdf.expand (prk, SECRET_LABEL,
+							      Constants.numSecretBytes));
+      Arrays.fill (prk, (byte) 0);
+      return t;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+
+  // The secret of a session resumed from resumptionSecret with the two peers' nonces
+  static byte[] resume (byte[] resumptionSecret, byte[] id, byte[] nonceI, byte[] nonceR) {
+    byte[] salt = new byte[nonceI.length + nonceR.length];
+    byte[] info = Arrays.copyOf (RESUME_LABEL, RESUME_LABEL.length + id.length);
+
+    System.arraycopy (nonceI, 0, salt, 0, nonceI.length);
+    System.arraycopy (nonceR, 0, salt, nonceI.length, nonceR.length);
+    System.arraycopy (id, 0, info, RESUME_LABEL.length, id.length);
+
+    try {
+      return Hkdf.derive (salt, resumptionSecret, info, Constants.numSecretBytes);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+
+  public byte[] getId () {
+    return id.clone ();
+  }
+}
+
+
+class RlweSessionCache {
+  private final Stripe[] stripes;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+
+
+  private static class Entry {
+    final byte[] secret;
+    final long expires;
+
+
+    Entry (byte[] secret, long expires) {
+      this.secret = secret;
+      this.expires = expires;
+    }
+  }
+
+
+  private static class Stripe extends LinkedHashMap<ByteBuffer, Entry> {
+    private static final long serialVersionUID = 1L;                 // Never serialized
+
+    final int capacity;
+
+
+    Stripe (int capacity) {
+      super (16, 0.75f, false);
+      this.capacity = capacity;
+    }
+
+
+    protected boolean removeEldestEntry (Map.Entry<ByteBuffer, Entry> eldest) {
+      if (size () <= capacity)
+	return false;
+      Arrays.fill (eldest.getValue().secret, (byte) 0);
+      return true;
+    }
+
+
+    void expire (long now) {
+      Iterator<Entry> it = values().iterator ();
+      Entry e;
+
+      while (it.hasNext () && (e = it.next ()).expires - now <= 0) {
+	Arrays.fill (e.secret, (byte) 0);
+	it.remove ();
+      }
+    }
+  }
+
+
+  RlweSessionCache (int capacity, Duration ttl, LongSupplier clock) {
+    int n = Integer.highestOneBit (Math.max (1, Math.min (64, capacity / 64)));
+
+    stripes = new Stripe[n];
+    for (int i = 0; i < n; i++)
+      stripes[i] = new Stripe ((capacity + n - 1) / n);
+    ttlNanos = ttl.toNanos ();
+    this.clock = clock;
+  }
+
+
+  RlweSessionCache (int capacity, Duration ttl) {
+    this (capacity, ttl, System::nanoTime);
+  }
+
+
+  private Stripe stripe (byte[] id) {
+    // Ids are HKDF output, so any four bytes are uniformly distributed
+    return stripes[ByteBuffer.wrap(id).getInt () & (stripes.length - 1)];
+  }
+
+
+  void put (ResumptionTicket t) {
+    Stripe s = stripe (t.id);
+    long now = clock.getAsLong ();
+
+    synchronized (s) {
+      s.expire (now);
+      s.put (ByteBuffer.wrap (t.id.clone ()), new Entry (t.secret.clone (), now + ttlNanos));
+    }
+  }
+
+
+  // Removes and returns the resumption secret for id, or null if it is unknown or has expired
+  byte[] take (byte[] id) {
+    Stripe s = stripe (id);
+    long now = clock.getAsLong ();
+    Entry e;
+
+    synchronized (s) {
+      s.expire (now);
+      e = s.remove (ByteBuffer.wrap (id));
+    }
+
+    return e == null ? null : e.secret;
+  }
+
+
+  int size () {
+    int n = 0;
+
+    for (Stripe s : stripes)
+      synchronized (s) {
+	n += s.size ();
+      }
+    return n;
+  }
+}
@@ -0,0 +1,108 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * SIMD-within-a-register kernels for the element-wise ring operations. Four coefficients are
+ * packed into 16-bit lanes of one long, so each 64-bit add, shift or mask works on four
+ * coefficients at once on any JVM, without the Vector API.
+ *
+ * Coefficients are 14-bit, which leaves headroom in each lane: values up to 3q - 1 fit without
+ * carrying into the next lane. The conditional subtraction of q is done with lane-wise masks in
+ * the same style as RingElt.correction, so there are no data-dependent branches. Each kernel
+ * states the input range it relies on; the scalar code in RingElt is the reference. The packed
+ * lanes are kept in the calling thread's Workspace.
+ *
+ **************************************************************************************************/
+
+
+class Swar {
+  static final int LANES = 4;
+
+  private static final long HIGH = 0x8000800080008000L;      // Top bit of each lane
+  private static final long LOW = 0x7fff7fff7fff7fffL;
+  private static final long LANE_Q = Constants.Q * 0x0001000100010001L;
+  private static final long LANE_ONES = 0xffffL;
+
+
+  // Packs coeff[i] + bias into lanes; every coeff[i] + bias must lie in [0, 2^16)
+  static void pack (long[] coeff, long bias, long[] lanes) {
+    int i, j;
+
+    for (i = 0, j = 0; i < lanes.length; i++, j += LANES) {
+      lanes[i] = ((coeff[j] + bias) & 0xffff)
+	| ((coeff[j + 1] + bias) & 0xffff) << 16
+	| ((coeff[j + 2] + bias) & 0xffff) << 32
+	| ((coeff[j + 3] + bias) & 0xffff) << 48;
+    }
+  }
+
+
+  static void unpack (long[] lanes, long[] coeff) {
+    int i, j;
+
+    for (i = 0, j = 0; i < lanes.length; i++, j += LANES) {
+      coeff[j] = lanes[i] & 0xffff;
+      coeff[j + 1] = (lanes[i] >>> 16) & 0xffff;
+      coeff[j + 2] = (lanes[i] >>> 32) & 0xffff;
+      coeff[j + 3] = lanes[i] >>> 48;
+    }
+  }
+
+
+  // Subtracts q from every lane holding a value >= q. Lanes may hold any 16-bit value.
+  static long csubq (long x) {
+    long ge, mask;
+
+    ge = ((x & LOW) | HIGH) - LANE_Q;           // Top bit set where the low 15 bits are >= q
+    ge = ((ge | x) & HIGH) >>> 15;              // ... or where the lane's own top bit is set
+    mask = ge * LANE_ONES;
+
+    return x - (LANE_Q & mask);
+  }
+
+
+  // c = a + b reduced to [0, q), for a in [0, q) and b in [-q, q)
+  static void ringAdd (long[] a, long[] b, long[] c) {
+    Workspace ws = Workspace.get ();
+    long[] x = ws.lanesX;
+    long[] y = ws.lanesY;
+
+    pack (a, 0, x);
+    pack (b, Constants.Q, y);                   // Bias b by q so every lane is non-negative
+
+    for (int i = 0; i < x.length; i++)
+      x[i] = csubq (csubq (x[i] + y[i]));       // Lanes hold a + b + q < 3q
+
+    unpack (x, c);
+  }
+
+
+  // Reduces each coefficient from [-q, 2q) to [0, q)
+  static void correction (long[] coeff) {
+    long[] x = Workspace.get().lanesX;
+
+    pack (coeff, Constants.Q, x);
+
+    for (int i = 0; i < x.length; i++)
+      x[i] = csubq (csubq (csubq (x[i])));
+
+    unpack (x, coeff);
+  }
+
+
+  // Multiplies each coefficient in [-q, q) by 3 and reduces to [0, q). The scalar version leaves
+  // negative inputs (error samples) as 3x; the results are congruent and every caller reduces
+  // further before the value is observable.
+  static void multBy3 (long[] coeff) {
+    long[] x = Workspace.get().lanesX;
+
+    pack (coeff, Constants.Q, x);
+
+    for (int i = 0; i < x.length; i++) {
+      x[i] = csubq (x[i]);                      // Now in [0, q), so 3x < 3q fits in a lane
+      x[i] = csubq (csubq ((x[i] << 1) + x[i]));
+    }
+
+    unpack (x, coeff);
+  }
+}
@@ -6,13 +6,35 @@ package rlwe;
  *
  **************************************************************************************************/
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 class RlweTest {
   public static boolean debug = false;
 
-  public static void main (String[] args) {
+  public static void main (String[] args) throws Exception {
     RlweKeyExchange kex = new RlweKeyExchange ();
     int i;
 
@@ -24,6 +46,16 @@ class RlweTest {
     int iterations = 10000;
     int nfailures = 0;
 
+    if (Arrays.asList(args).contains ("-warmup"))
+      System.out.printf ("\nWarmed up: %d microseconds per exchange\n",
+			RlweKeyExchange.warmUp (Duration.ofSeconds (30)) / 1000);
+
+    HistogramRecorder metrics = null;
+    if (Arrays.asList(args).contains ("-metrics")) {
+      metrics = new HistogramRecorder ();
+      RlweMetrics.install (metrics);
+    }
+
     System.out.println ("\nTesting public key construction with known answer");
 
     RlwePrivateKey s1 = loadTestPrivKey ();
@@ -32,12 +64,126 @@ class RlweTest {
     RlwePublicKey correctValue = loadTestPubKey ();
     RlwePublicKey testValue = new RlwePublicKey (s1, s0, kex.getA ());
 
-    testValue.fromFourierDomain ();
+    testValue = testValue.fromFourierDomain ();
     
     if (correctValue.getKey().equals (testValue.getKey()))
       System.out.println ("... Known answer test passed");
     else 
       System.out.println ("... Known answer test failed");
+
+    System.out.println ("\nTesting key serialization and KEM round trip");
+
+    keysI = kex.generateKeyPair ();
+    RlwePublicKey decodedPub = new RlwePublicKey (keysI.getPublicKey().serialize ());
+    RlwePrivateKey decodedPriv = new RlwePrivateKey (keysI.getPrivateKey().serialize ());
+
+    response = kex.encapsulate (decodedPub);
+    secretI = kex.decapsulate (decodedPriv, response[1]);
+
+    if (Arrays.equals (secretI, response[0]))
+      System.out.println ("... Round trip test passed");
+    else
+      System.out.println ("... Round trip test failed");
+
+    System.out.println ("\nTesting that secret scratch is cleared");
+
+    if (testScratchCleared (kex))
+      System.out.println ("... Scratch test passed");
+    else
+      System.out.println ("... Scratch test failed");
+
+    System.out.println ("\nTesting compressed public keys");
+
+    // 3e-5 is the 95% upper bound on the 10-bit failure rate from FailureEstimator -compress 10,
+    // which saw no failures in 100,000 exchanges
+    if (testCompressedKeys (kex, 10, 100, 3e-5))
+      System.out.println ("... Compressed key test passed");
+    else
+      System.out.println ("... Compressed key test failed");
+
+    System.out.println ("\nTesting SWAR kernels against the scalar reference");
+
+    if (testSwar (200))
+      System.out.println ("... SWAR test passed");
+    else
+      System.out.println ("... SWAR test failed");
+
+    System.out.println ("\nTesting one initiator agreeing with many responders");
+
+    if (testInitAgreementAll (kex, 19))
+      System.out.println ("... Fan-out test passed");
+    else
+      System.out.println ("... Fan-out test failed");
+
+    System.out.println ("\nTesting hybrid X25519 + RLWE exchange");
+
+    if (testHybrid (kex) && testHybridHandshake (kex))
+      System.out.println ("... Hybrid test passed");
+    else
+      System.out.println ("... Hybrid test failed");
+
+    System.out.println ("\nTesting batched agreements through a Flow processor");
+
+    if (testBatchProcessor (kex))
+      System.out.println ("... Batch processor test passed");
+    else
+      System.out.println ("... Batch processor test failed");
+
+    System.out.println ("\nTesting multiplexed handshakes over in-memory pipes");
+
+    if (testHandshake (kex, 8))
+      System.out.println ("... Handshake test passed");
+    else
+      System.out.println ("... Handshake test failed");
+
+    System.out.println ("\nTesting session resumption");
+
+    if (testResumption (kex))
+      System.out.println ("... Resumption test passed");
+    else
+      System.out.println ("... Resumption test failed");
+
+    System.out.println ("\nTesting admission control");
+
+    if (testAdmission (kex))
+      System.out.println ("... Admission test passed");
+    else
+      System.out.println ("... Admission test failed");
+
+    System.out.println ("\nTesting public key rotation");
+
+    if (testKeyRotation (kex))
+      System.out.println ("... Key rotation test passed");
+    else
+      System.out.println ("... Key rotation test failed");
+
+    System.out.println ("\nTesting key store write and lookup");
+
+    if (testKeyStore (kex, 16))
+      System.out.println ("... Key store test passed");
+    else
+      System.out.println ("... Key store test failed");
+
+    System.out.println ("\nTesting bulk provisioning with checkpoint and resume");
+
+    if (testProvisioner (kex, 40))
+      System.out.println ("... Provisioning test passed");
+    else
+      System.out.println ("... Provisioning test failed");
+
+    System.out.println ("\nTesting binary known-answer vectors on every backend");
+
+    if (testKat (64))
+      System.out.println ("... KAT test passed");
+    else
+      System.out.println ("... KAT test failed");
+
+    System.out.println ("\nTesting transcript recording and replay");
+
+    if (testTranscript (kex, 6))
+      System.out.println ("... Transcript test passed");
+    else
+      System.out.println ("... Transcript test failed");
     
     System.out.printf ("\nTesting %d key exchanges with randomly generated keys... ", iterations);
     
@@ -69,6 +215,7 @@ class RlweTest {
 	  System.out.println ("\n");
 	}
 	
+        RlweMetrics.count (RlweMetrics.Counter.MISMATCHES);
         nfailures++;
       }
       
@@ -80,6 +227,768 @@ class RlweTest {
     
     System.out.println ("\nTime for " + iterations + " iterations: " + totalTime + " microseconds");
     System.out.println ("Average time = " + (totalTime / iterations) + " microseconds\n");
+
+    if (metrics != null)
+      System.out.println (metrics.export ());
+  }
+
+
+  public static boolean testScratchCleared (RlweKeyExchange kex) {
+    // Keys built outside the exchange methods sample through the workspace, and agreements that
+    // refuse their input or throw part-way must leave it clear
+    Workspace ws = Workspace.get ();
+    RlweKeyPair keys = kex.generateKeyPair ();
+    RingElt zero = new RingElt ();
+    boolean ok;
+
+    new RlwePublicKey (new RlwePrivateKey (), kex.getA ());
+    ok = Arrays.equals (ws.sampleBits, new byte[ws.sampleBits.length]);
+
+    try {
+      kex.initAgreement (keys.getPrivateKey (), keys.getPublicKey (), new byte[1]);
+      return false;
+    } catch (IllegalArgumentException e) {
+      // Expected: the reconciliation data is short
+    }
+
+    ok &= ws.v.equals (zero) && ws.e.equals (zero);
+
+    try {
+      kex.initAgreementAll (keys.getPrivateKey (), Arrays.asList (keys.getPublicKey (), null),
+			    Arrays.asList (new byte[Constants.numRecDataBytes],
+					   new byte[Constants.numRecDataBytes]));
+      return false;
+    } catch (NullPointerException e) {
+      // Expected: the first responder's product is already in the group
+    }
+
+    return ok && ws.group()[0].equals (zero);
+  }
+
+
+  public static boolean testCompressedKeys (RlweKeyExchange kex, int bits, int exchanges,
+					    double failureRate) {
+    // Every coefficient must come back within half a rounding step, and exchanges over compressed
+    // keys must fail no more often than failureRate allows (see failureBound). Keys in the Fourier
+    // domain must be refused, and so must headers serializeCompressed never writes and truncated
+    // encodings.
+    long maxError = (Constants.Q >> (bits + 1)) + 1, d;
+    RlweKeyPair keysI, keysR;
+    RlwePublicKey pubI, pubR;
+    byte[] encoded = null;
+    byte[][] response;
+    int i, j, failures = 0;
+
+    for (i = 0; i < exchanges; i++) {
+      keysI = kex.generateKeyPair (Constants.ORDINARY);
+      keysR = kex.generateKeyPair (Constants.ORDINARY);
+
+      encoded = keysI.getPublicKey().serializeCompressed (bits);
+      if (encoded.length != RlwePublicKey.compressedBytes (bits))
+	return false;
+      pubI = new RlwePublicKey (encoded);
+      pubR = new RlwePublicKey (keysR.getPublicKey().serializeCompressed (bits));
+
+      if (pubI.getDomain () != Constants.ORDINARY)
+	return false;
+      for (j = 0; j < Constants.N; j++) {
+	d = Math.floorMod (pubI.getKey().getCoeff (j) - keysI.getPublicKey().getKey().getCoeff (j),
+			   Constants.Q);
+	if (Math.min (d, Constants.Q - d) > maxError)
+	  return false;
+      }
+
+      response = kex.respAgreement (keysR.getPrivateKey (), pubI);
+      if (!Arrays.equals (response[0], kex.initAgreement (keysI.getPrivateKey (), pubR,
+							    response[1])))
+	failures++;
+    }
+    if (failures > failureBound (exchanges, failureRate))
+      return false;
+
+    try {
+      kex.generateKeyPair(Constants.FOURIER).getPublicKey().serializeCompressed (bits);
+      return false;
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    for (int header : new int[] {14 << 4 | Constants.ORDINARY, 15 << 4 | Constants.ORDINARY,
+				 bits << 4 | Constants.FOURIER, bits << 4 | 2}) {
+      encoded[0] = (byte) header;
+      try {
+	new RlwePublicKey (encoded);
+	return false;
+      } catch (IllegalArgumentException e) {
+	// Expected
+      }
+    }
+
+    // Truncated input must be refused the same way, compressed or not
+    encoded[0] = (byte) (bits << 4 | Constants.ORDINARY);
+    for (byte[] truncated : new byte[][] {
+	Arrays.copyOf (encoded, encoded.length - 1), new byte[0],
+	Arrays.copyOf (kex.generateKeyPair().getPublicKey().serialize (),
+		       Constants.numKeyBytes - 1)}) {
+      try {
+	new RlwePublicKey (truncated);
+	return false;
+      } catch (IllegalArgumentException e) {
+	// Expected
+      }
+    }
+
+    return true;
+  }
+
+
+  private static int failureBound (int n, double p) {
+    // Smallest k with P(X > k) < 1e-9 for X ~ Binomial (n, p), so a correct implementation fails
+    // the check about once in a billion runs
+    double term = Math.pow (1 - p, n), tail = 1 - term;
+    int k = 0;
+
+    while (tail >= 1e-9) {
+      term *= (double) (n - k) / (k + 1) * p / (1 - p);
+      tail -= term;
+      k++;
+    }
+    return k;
+  }
+
+
+  public static boolean testInitAgreementAll (RlweKeyExchange kex, int responders) {
+    // Responders alternate between the transmit domain and FOURIER, and the count leaves a
+    // partial interleaved group at the end
+    RlweKeyPair keysI = kex.generateKeyPair (), keysR;
+    List<RlwePublicKey> pubs = new ArrayList<RlwePublicKey> ();
+    List<byte[]> rdata = new ArrayList<byte[]> ();
+    byte[][] secrets = new byte[responders][], response;
+    byte[] all;
+    int i;
+
+    for (i = 0; i < responders; i++) {
+      keysR = kex.generateKeyPair ((i & 1) == 0 ? kex.getTransmitDomain () : Constants.FOURIER);
+      response = kex.respAgreement (keysR.getPrivateKey (), keysI.getPublicKey ());
+      pubs.add (keysR.getPublicKey ());
+      rdata.add (response[1]);
+      secrets[i] = response[0];
+    }
+
+    all = kex.initAgreementAll (keysI.getPrivateKey (), pubs, rdata);
+    if (all.length != responders * Constants.numSecretBytes)
+      return false;
+
+    for (i = 0; i < responders; i++) {
+      byte[] secret = Arrays.copyOfRange (all, i * Constants.numSecretBytes,
+					  (i + 1) * Constants.numSecretBytes);
+      if (!Arrays.equals (secret, secrets[i])
+	  || !Arrays.equals (secret, kex.initAgreement (keysI.getPrivateKey (), pubs.get (i),
+							rdata.get (i))))
+	return false;
+    }
+
+    return true;
+  }
+
+
+  public static boolean testSwar (int trials) {
+    // Each SWAR kernel must match the scalar code bit for bit over its whole documented input
+    // range; the first trial uses the end points of each range
+    Random rnd = new Random (1);
+    long[] x = new long[Constants.N], y = new long[Constants.N], z = new long[Constants.N];
+    RingElt[] ref, r;
+    boolean ok = true;
+    int i, t, q = Constants.Q;
+
+    for (t = 0; t < trials; t++) {
+      for (i = 0; i < Constants.N; i++) {
+	x[i] = t == 0 ? (i & 1) * (q - 1) : rnd.nextInt (q);
+	y[i] = t == 0 ? (i & 2) == 0 ? -q : q - 1 : rnd.nextInt (2 * q) - q;
+	z[i] = t == 0 ? (i & 1) == 0 ? -q : 2 * q - 1 : rnd.nextInt (3 * q) - q;    // [-q, 2q)
+      }
+
+      ref = RingElt.withBackend (RingElt.SCALAR, () -> swarKernels (x, y, z));
+      r = RingElt.withBackend (RingElt.SWAR, () -> swarKernels (x, y, z));
+      for (i = 0; i < r.length; i++)
+	ok &= r[i].equals (ref[i]);
+    }
+
+    return ok;
+  }
+
+
+  private static RingElt[] swarKernels (long[] x, long[] y, long[] z) {
+    // x + y, 3x and the correction of z on this thread's backend
+    RingElt[] out = {new RingElt (x).ringAdd (new RingElt (y)), new RingElt (x), new RingElt (z)};
+
+    out[1].multBy3 ();
+    out[2].correction ();
+    return out;
+  }
+
+
+  public static boolean testHybrid (RlweKeyExchange kex) throws GeneralSecurityException {
+    // Both sides must derive the same secret, and tampering with either half of the response
+    // must change the initiator's secret. With the pool's only thread held and its queue full,
+    // an exchange must still complete, its X25519 halves run on the calling thread.
+    RlweHybrid hybrid = new RlweHybrid (kex);
+    HybridKeyPair keys = hybrid.generateKeyPair ();
+    byte[][] response = hybrid.respond (keys.getMessage ());
+    ThreadPoolExecutor pool = RlweHybrid.sharedPool (1);
+    CountDownLatch held = new CountDownLatch (1);
+
+    if (!Arrays.equals (response[0], hybrid.finish (keys, response[1])))
+      return false;
+
+    for (int pos : new int[] {0, RlweHybrid.RESP_BYTES - 1}) {
+      byte[] tampered = response[1].clone ();
+      tampered[pos] ^= 1;
+      if (Arrays.equals (response[0], hybrid.finish (keys, tampered)))
+	return false;
+    }
+
+    try {
+      pool.execute (() -> {
+	  try {
+	    held.await ();
+	  } catch (InterruptedException e) {
+	    Thread.currentThread().interrupt ();
+	  }
+	});
+      while (pool.getQueue().remainingCapacity () > 0)
+	pool.execute (() -> {});
+
+      hybrid = new RlweHybrid (kex, pool);
+      keys = hybrid.generateKeyPair ();
+      response = hybrid.respond (keys.getMessage ());
+      return Arrays.equals (response[0], hybrid.finish (keys, response[1]));
+    } finally {
+      held.countDown ();
+      pool.shutdown ();
+    }
+  }
+
+
+  public static boolean testBatchProcessor (RlweKeyExchange kex) throws InterruptedException {
+    // A processor that never times out can only finish 12 operations by filling batches of 4,
+    // and one whose batches never fill can only finish 3 through the deadline. Initiator
+    // operations 5-7 and 9-10 share a key, so each of those runs is completed as a group; 1 and
+    // 10 fail. Results must come back in order, and a failing operation must be reported without
+    // stalling the rest, even when it is part of a group. Closing a processor must run the
+    // operations still waiting and complete downstream.
+    RlweKeyPair kI = kex.generateKeyPair (), kR = kex.generateKeyPair ();
+    List<BatchOp> ops = new ArrayList<BatchOp> ();
+    List<byte[]> expected = new ArrayList<byte[]> ();
+    List<BatchResult> results;
+    List<Integer> initiators = Arrays.asList (1, 5, 6, 7, 9, 10), failing = Arrays.asList (1, 10);
+    byte[][] response;
+    BatchResult r;
+    boolean ok = true;
+    int i;
+
+    for (i = 0; i < 12; i++) {
+      response = kex.respAgreement (kR.getPrivateKey (), kI.getPublicKey ());
+      expected.add (response[0]);
+      if (!initiators.contains (i))
+	ops.add (BatchOp.respond (kR.getPrivateKey (), kI.getPublicKey (), i));
+      else
+	ops.add (BatchOp.initiate (kI.getPrivateKey (), kR.getPublicKey (),
+				   failing.contains (i) ? new byte[1] : response[1], i));
+    }
+
+    try (RlweBatchProcessor p = new RlweBatchProcessor (kex, 4, Duration.ofHours (1), 2)) {
+      results = runBatches (p, ops);
+    }
+    if (results == null)
+      return false;
+
+    for (i = 0; i < ops.size (); i++) {
+      r = results.get (i);
+      ok &= r.op == ops.get (i);
+      if (failing.contains (i))
+	ok &= r.error != null && r.secret == null;
+      else if (initiators.contains (i))
+	ok &= r.error == null && Arrays.equals (r.secret, expected.get (i));
+      else
+	ok &= r.error == null && Arrays.equals (r.secret, kex.initAgreement (kI.getPrivateKey (),
+									    kR.getPublicKey (),
+									    r.recData));
+    }
+
+    try (RlweBatchProcessor p = new RlweBatchProcessor (kex, 32, Duration.ofMillis (20))) {
+      results = runBatches (p, ops.subList (2, 5));
+    }
+    ok &= results != null && results.get(0).op == ops.get (2) && results.get(2).op == ops.get (4);
+
+    // Fed directly, so the operations are known to be waiting when close is called
+    List<BatchResult> flushed = Collections.synchronizedList (new ArrayList<BatchResult> ());
+    CountDownLatch completed = new CountDownLatch (1);
+    RlweBatchProcessor p = new RlweBatchProcessor (kex, 32, Duration.ofHours (1));
+
+    p.subscribe (new Flow.Subscriber<BatchResult> () {
+	public void onSubscribe (Flow.Subscription s) { s.request (Long.MAX_VALUE); }
+	public void onNext (BatchResult r) { flushed.add (r); }
+	public void onError (Throwable t) {}
+	public void onComplete () { completed.countDown (); }
+      });
+    p.onSubscribe (new Flow.Subscription () {
+	public void request (long n) {}
+	public void cancel () {}
+      });
+    for (i = 0; i < 3; i++)
+      p.onNext (ops.get (i));
+    p.close ();
+
+    return ok && completed.await (30, TimeUnit.SECONDS) && flushed.size () == 3
+      && flushed.get(2).op == ops.get (2);
+  }
+
+
+  private static List<BatchResult> runBatches (RlweBatchProcessor p, List<BatchOp> ops)
+    throws InterruptedException {
+    // Publishes ops to p and returns the results, or null if they don't all arrive. Upstream stays
+    // open until then, so no batch is flushed by completion.
+    List<BatchResult> results = Collections.synchronizedList (new ArrayList<BatchResult> ());
+    CountDownLatch done = new CountDownLatch (ops.size ());
+
+    p.subscribe (new Flow.Subscriber<BatchResult> () {
+	public void onSubscribe (Flow.Subscription s) { s.request (Long.MAX_VALUE); }
+	public void onNext (BatchResult r) { results.add (r); done.countDown (); }
+	public void onError (Throwable t) {}
+	public void onComplete () {}
+      });
+
+    try (SubmissionPublisher<BatchOp> upstream = new SubmissionPublisher<BatchOp> ()) {
+      upstream.subscribe (p);
+      for (BatchOp op : ops)
+	upstream.submit (op);
+      return done.await (30, TimeUnit.SECONDS) ? new ArrayList<BatchResult> (results) : null;
+    }
+  }
+
+
+  public static boolean testHybridHandshake (RlweKeyExchange kex) throws IOException {
+    // A hybrid session and a plain one share a connection; the hybrid frames are larger than any
+    // plain frame. With the clock stopped, a 150 us burst at the initial 100 us cost admits those
+    // two, and a busy responder must turn the next hybrid session away like any other.
+    Pipe toResponder = Pipe.open ();
+    Pipe toInitiator = Pipe.open ();
+    RlweAdmission a = new RlweAdmission (1, 150000, () -> 0, null);
+    RlweInitiator initiator = new RlweInitiator (kex, toResponder.sink ());
+    RlweResponder responder = new RlweResponder (kex, toInitiator.sink (),
+						 RlweHandshake.CAP_FOURIER, null, a);
+    int hybrid = initiator.startHybrid (), plain = initiator.start (), busy;
+    byte[] secret;
+
+    while (!responder.isComplete (plain))
+      responder.read (toResponder.source ());
+    while (initiator.pendingSessions () > 0)
+      initiator.read (toInitiator.source ());
+
+    secret = initiator.getSecret (hybrid);
+    if (secret == null || !Arrays.equals (secret, responder.getSecret (hybrid))
+	|| Arrays.equals (secret, initiator.getSecret (plain)))
+      return false;
+
+    busy = initiator.startHybrid ();
+    while (initiator.pendingSessions () > 0) {
+      responder.read (toResponder.source ());
+      initiator.read (toInitiator.source ());
+    }
+
+    return initiator.getRetryAfter (busy) > 0 && !responder.isComplete (busy);
+  }
+
+
+  public static boolean testHandshake (RlweKeyExchange kex, int sessions) throws IOException {
+    // Runs two rounds of sessions. The first round is sent before the responder's HELLO arrives,
+    // so it stays in the exchange's transmit domain; the second is negotiated to FOURIER.
+    Pipe toResponder = Pipe.open ();
+    Pipe toInitiator = Pipe.open ();
+    RlweInitiator initiator = new RlweInitiator (kex, toResponder.sink ());
+    RlweResponder responder = new RlweResponder (kex, toInitiator.sink ());
+    int i, round, session;
+
+    for (round = 0; round < 2; round++) {
+      for (i = 0; i < sessions; i++)
+	initiator.start ();
+
+      while (!responder.isComplete (sessions * (round + 1) - 1))
+	responder.read (toResponder.source ());
+
+      while (initiator.pendingSessions () > 0)
+	initiator.read (toInitiator.source ());
+
+      for (i = 0; i < sessions; i++) {
+	session = sessions * round + i;
+	if (initiator.getDomain (session) != (round == 0 ? kex.getTransmitDomain ()
+					       : Constants.FOURIER)
+	    || responder.getDomain (session) != initiator.getDomain (session))
+	  return false;
+	if (!Arrays.equals (initiator.getSecret (session), responder.getSecret (session)))
+	  return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  public static boolean testResumption (RlweKeyExchange kex) throws IOException {
+    // A full exchange, a resumption from its ticket (which has no domain), a replay of the same
+    // ticket (rejected, so a full exchange follows) and a resumption after the ticket has expired
+    // (likewise rejected).
+    Pipe toResponder = Pipe.open ();
+    Pipe toInitiator = Pipe.open ();
+    long[] now = {0};
+    RlweSessionCache cache = new RlweSessionCache (16, Duration.ofSeconds (10), () -> now[0]);
+    RlweInitiator initiator = new RlweInitiator (kex, toResponder.sink (), (byte) 0);
+    RlweResponder responder = new RlweResponder (kex, toInitiator.sink (), (byte) 0, cache);
+    byte[] full, resumed, replayed, expired;
+    ResumptionTicket ticket;
+    int session;
+
+    session = initiator.start ();
+    exchange (initiator, responder, toResponder, toInitiator, session);
+    full = initiator.getSecret (session);
+    if (!Arrays.equals (full, responder.getSecret (session)) || cache.size () != 1)
+      return false;
+
+    ticket = ResumptionTicket.derive (full);
+    session = initiator.resume (ticket);
+    if (exchange (initiator, responder, toResponder, toInitiator, session)
+	|| initiator.getDomain (session) != -1 || responder.getDomain (session) != -1)
+      return false;
+    resumed = initiator.getSecret (session);
+    if (!Arrays.equals (resumed, responder.getSecret (session)) || Arrays.equals (resumed, full))
+      return false;
+
+    session = initiator.resume (ticket);
+    if (!exchange (initiator, responder, toResponder, toInitiator, session))
+      return false;
+    replayed = initiator.getSecret (session);
+    if (!Arrays.equals (replayed, responder.getSecret (session)))
+      return false;
+
+    now[0] += Duration.ofSeconds(11).toNanos ();
+    session = initiator.resume (ResumptionTicket.derive (replayed));
+    if (!exchange (initiator, responder, toResponder, toInitiator, session))
+      return false;
+    expired = initiator.getSecret (session);
+
+    return Arrays.equals (expired, responder.getSecret (session));
+  }
+
+
+  // Runs one session that the initiator has just started or asked to resume. Returns true if
+  // the responder rejected a resumption and a full exchange was run instead.
+  private static boolean exchange (RlweInitiator initiator, RlweResponder responder,
+				   Pipe toResponder, Pipe toInitiator, int session)
+    throws IOException {
+    boolean rejected = false;
+
+    responder.read (toResponder.source ());
+    if (!responder.isComplete (session)) {
+      initiator.read (toInitiator.source ());
+      responder.read (toResponder.source ());
+      rejected = true;
+    }
+    while (initiator.pendingSessions () > 0)
+      initiator.read (toInitiator.source ());
+
+    return rejected;
+  }
+
+
+  public static boolean testAdmission (RlweKeyExchange kex) throws IOException {
+    // One core and a 250 us burst at the initial 100 us cost admit three operations at once,
+    // then one more every 100 us; a measured 40 us moves the estimate a quarter of the way there
+    long[] now = {0};
+    RlweAdmission a = new RlweAdmission (1, 250000, () -> now[0], null);
+    Pipe toResponder = Pipe.open ();
+    Pipe toInitiator = Pipe.open ();
+    RlweInitiator initiator = new RlweInitiator (kex, toResponder.sink (), (byte) 0);
+    RlweResponder responder = new RlweResponder (kex, toInitiator.sink (), (byte) 0, null, a);
+    int i, handled = 0;
+
+    for (i = 0; i < 3; i++)
+      if (a.admit () != 0)
+	return false;
+    if (a.admit () != 50000)
+      return false;
+    now[0] += 50000;
+    if (a.admit () != 0 || a.getAdmitted () != 4 || a.getRejected () != 1)
+      return false;
+
+    now[0] += RlweAdmission.UPDATE_NANOS;
+    a.admit ();
+    a.recordPhase (RlweMetrics.Phase.NTT, 40000);
+    a.complete ();
+    now[0] += RlweAdmission.UPDATE_NANOS;
+    a.admit ();
+    if (a.getCost () != 85000)
+      return false;
+
+    // 85 us is charged and the bucket holds 250 us, so the third of three INITs is turned away
+    for (i = 0; i < 3; i++)
+      initiator.start ();
+    while (handled < 3)
+      handled += responder.read (toResponder.source ());
+    while (initiator.pendingSessions () > 0)
+      initiator.read (toInitiator.source ());
+
+    return Arrays.equals (initiator.getSecret (1), responder.getSecret (1))
+      && initiator.getRetryAfter (1) == -1 && initiator.getRetryAfter (2) > 0
+      && !responder.isComplete (2);
+  }
+
+
+  public static boolean testKeyRotation (RlweKeyExchange kex) {
+    // Rotates by hand with a 10 s overlap, checking which generations are still served and that
+    // a rotated public key agrees with the unchanged private key, then lets the schedule rotate
+    long[] now = {0};
+    RlweKeyPair peer = kex.generateKeyPair ();
+    KeyGeneration g0, g1, g2;
+    byte[][] response;
+
+    try (RlweKeyRotation rotation = new RlweKeyRotation (kex, kex.generateKeyPair (), null,
+							 Duration.ofSeconds (10), () -> now[0])) {
+      g0 = rotation.current ();
+      now[0] = Duration.ofSeconds(1).toNanos ();
+      g1 = rotation.rotate ();
+      if (g1.getId () != 1 || rotation.current () != g1 || rotation.get (0) != g0
+	  || Arrays.equals (g0.getEncoded (), g1.getEncoded ()))
+	return false;
+
+      now[0] = Duration.ofSeconds(12).toNanos ();
+      if (rotation.get (0) != null || rotation.get (1) != g1)
+	return false;
+
+      g2 = rotation.rotate ();
+      if (rotation.get (1) != g1 || rotation.get (2) != g2 || rotation.get (3) != null
+	  || g2.getKeyPair().getPrivateKey () != g0.getKeyPair().getPrivateKey ())
+	return false;
+
+      response = kex.respAgreement (peer.getPrivateKey (), g2.getKeyPair().getPublicKey ());
+      if (!Arrays.equals (response[0], kex.initAgreement (g2.getKeyPair().getPrivateKey (),
+							  peer.getPublicKey (), response[1])))
+	return false;
+
+      // The background thread must have the next generation ready, and rotate must publish it
+      if (!await (() -> rotation.precomputed () != null))
+	return false;
+      g2 = rotation.precomputed ();
+      if (rotation.rotate () != g2)
+	return false;
+    }
+
+    // On a 20 ms period the published id must keep advancing, even though the clock throws
+    // during the second rotation, and that failure must be reported
+    AtomicInteger calls = new AtomicInteger ();
+    try (RlweKeyRotation rotation = new RlweKeyRotation (kex, kex.generateKeyPair (),
+							 Duration.ofMillis (20),
+							 Duration.ofSeconds (10), () -> {
+							   if (calls.incrementAndGet () == 2)
+							     throw new IllegalStateException ("test");
+							   return System.nanoTime ();
+							 })) {
+      return await (() -> rotation.current().getId () >= 3)
+	&& rotation.getLastFailure () instanceof IllegalStateException;
+    }
+  }
+
+
+  private static boolean await (BooleanSupplier condition) {
+    // Polls for up to 30 s
+    long deadline = System.nanoTime () + Duration.ofSeconds(30).toNanos ();
+
+    while (!condition.getAsBoolean ()) {
+      if (System.nanoTime () > deadline)
+	return false;
+      try {
+	Thread.sleep (5);
+      } catch (InterruptedException e) {
+	Thread.currentThread().interrupt ();
+	return false;
+      }
+    }
+    return true;
+  }
+
+
+  public static boolean testKeyStore (RlweKeyExchange kex, int nkeys) throws IOException {
+    // Writes over a file anyone can read, which must end up owner-only, checks every key pair
+    // agrees with a peer, then fills every index slot and checks a lookup fails instead of
+    // probing forever
+    Path file = Files.createTempFile ("rlwe", ".keys");
+    RlweKeyPair[] keys = new RlweKeyPair[nkeys];
+    RlweKeyPair peer = kex.generateKeyPair ();
+    ByteBuffer header = ByteBuffer.allocate (RlweKeyStore.HEADER_BYTES), slot;
+    byte[][] response;
+    boolean ok = true;
+    int i;
+
+    Files.setPosixFilePermissions (file, PosixFilePermissions.fromString ("rw-r--r--"));
+    try {
+      try (RlweKeyStoreWriter writer = new RlweKeyStoreWriter (file)) {
+	for (i = 0; i < nkeys; i++) {
+	  keys[i] = kex.generateKeyPair ();
+	  writer.add (1000L * i, keys[i]);
+	}
+      }
+
+      try (RlweKeyStore store = RlweKeyStore.open (file)) {
+	for (i = 0; i < nkeys; i++) {
+	  response = kex.respAgreement (peer.getPrivateKey (), store.getPublicKey (1000L * i));
+	  ok &= Arrays.equals (response[0], kex.initAgreement (store.getPrivateKey (1000L * i),
+							       peer.getPublicKey (), response[1]));
+	}
+	ok &= store.size () == nkeys && !store.contains (1);
+      }
+      ok &= Files.getPosixFilePermissions (file)
+	.equals (PosixFilePermissions.fromString ("rw-------"));
+
+      try (FileChannel ch = FileChannel.open (file, StandardOpenOption.READ,
+					      StandardOpenOption.WRITE)) {
+	ch.read (header, 0);
+	slot = ByteBuffer.allocate (RlweKeyStore.SLOT_BYTES).putLong (-1).putInt (1);
+	for (i = 0; i < header.getInt (20); i++)
+	  ch.write (slot.flip (), header.getLong (12) + (long) i * RlweKeyStore.SLOT_BYTES);
+      }
+      try (RlweKeyStore store = RlweKeyStore.open (file)) {
+	store.contains (1);
+	ok = false;
+      } catch (IOException e) {
+	// Expected
+      }
+    } finally {
+      Files.delete (file);
+    }
+
+    return ok;
+  }
+
+
+  public static boolean testProvisioner (RlweKeyExchange kex, int nkeys) throws IOException {
+    // Stops part-way through over a file anyone could read, checks the partial store is
+    // owner-only and doesn't open, then resumes and checks that every stored key pair agrees with
+    // a fresh peer
+    Path file = Files.createTempFile ("rlwe", ".keys");
+    RlweProvisioner p = new RlweProvisioner (kex, ForkJoinPool.commonPool (), 8);
+    RlweKeyPair peer = kex.generateKeyPair ();
+    byte[][] response;
+    boolean ok = true;
+    long id;
+
+    Files.setPosixFilePermissions (file, PosixFilePermissions.fromString ("rw-r--r--"));
+    try {
+      ok &= p.run (file, 5000, nkeys, 16) == 16;
+      ok &= Files.getPosixFilePermissions (file)
+	.equals (PosixFilePermissions.fromString ("rw-------"));
+      try {
+	RlweKeyStore.open(file).close ();
+	return false;
+      } catch (IOException e) {
+	// Expected: the header is written last
+      }
+
+      ok &= p.provision (file, 5000, nkeys) == nkeys - 16;
+      ok &= !Files.exists (RlweProvisioner.checkpointFile (file));
+
+      try (RlweKeyStore store = RlweKeyStore.open (file)) {
+	ok &= store.size () == nkeys && !store.contains (5000 + nkeys);
+	for (id = 5000; id < 5000 + nkeys; id++) {
+	  response = kex.respAgreement (peer.getPrivateKey (), store.getPublicKey (id));
+	  ok &= Arrays.equals (response[0], kex.initAgreement (store.getPrivateKey (id),
+							       peer.getPublicKey (), response[1]));
+	}
+      }
+    } finally {
+      Files.deleteIfExists (RlweProvisioner.checkpointFile (file));
+      Files.delete (file);
+    }
+
+    return ok;
+  }
+
+
+  public static boolean testTranscript (RlweKeyExchange kex, int n) throws Exception {
+    // Records n exchanges into a log with room for 2n records, so one more exchange is dropped,
+    // then checks the log holding private keys is owner-only even though it replaced a readable
+    // file, that the first initiator record reproduces its secret and that replay runs them all
+    Path file = Files.createTempFile ("rlwe", ".transcript");
+    RlweKeyPair kI = kex.generateKeyPair (), kR = kex.generateKeyPair ();
+    ByteBuffer rec = ByteBuffer.allocate (Transcript.RECORD_BYTES);
+    byte[][] response;
+    byte[] first = null, rdata = new byte[Constants.numRecDataBytes];
+    boolean ok = true;
+    Transcript.Replay r;
+
+    Files.setPosixFilePermissions (file, PosixFilePermissions.fromString ("rw-r--r--"));
+    try {
+      try (Transcript t = Transcript.start (file, 2 * n, true)) {
+	ok &= Files.getPosixFilePermissions (file)
+	  .equals (PosixFilePermissions.fromString ("rw-------"));
+	for (int i = 0; i <= n; i++) {
+	  response = kex.respAgreement (kR.getPrivateKey (), kI.getPublicKey ());
+	  ok &= Arrays.equals (response[0], kex.initAgreement (kI.getPrivateKey (),
+							       kR.getPublicKey (), response[1]));
+	  if (i == 0)
+	    first = response[0];
+	}
+	ok &= t.getDropped () == 2;
+      }
+
+      try (FileChannel ch = FileChannel.open (file, StandardOpenOption.READ)) {
+	ok &= Transcript.header (ch) == 2 * n;
+	ch.read (rec, Transcript.HEADER_BYTES + Transcript.RECORD_BYTES);
+	ok &= rec.get (Transcript.TYPE) == Transcript.INIT;
+	rec.get (Transcript.REC, rdata);
+	ok &= Arrays.equals (first, kex.initAgreement (
+	  new RlwePrivateKey (Arrays.copyOfRange (rec.array (), Transcript.PRIVATE,
+						  Transcript.RECORD_BYTES)),
+	  new RlwePublicKey (rec.array (), Transcript.PEER_KEY), rdata));
+      }
+
+      r = Transcript.replay (file, 2, 2);
+      ok &= r.counts[Transcript.RESP] == 2 * n && r.counts[Transcript.INIT] == 2 * n
+	&& r.counts[0] == 0;
+      ok &= r.metrics.count (RlweMetrics.Counter.AGREEMENTS) == 4 * n;
+    } finally {
+      Files.delete (file);
+    }
+
+    return ok;
+  }
+
+
+  public static boolean testKat (int count) throws IOException {
+    // Vectors written with the reference backend must verify on all of them, and a corrupted
+    // public key must be caught
+    Path file = Files.createTempFile ("rlwe", ".kat");
+    boolean ok = true;
+
+    try {
+      Kat.generate (file, count, 1);
+      ByteBuffer buf = ByteBuffer.wrap (Files.readAllBytes (file));
+
+      for (String name : AutoTune.NAMES) {
+	if (!AutoTune.isAvailable (AutoTune.parse (name)))
+	  continue;
+	ok &= Arrays.stream(Kat.verify (buf, 1, AutoTune.parse (name))).sum () == 0;
+      }
+
+      int pos = Kat.HEADER_BYTES + Kat.PUB_I + 1;
+      buf.put (pos, (byte) ~buf.get (pos));
+      ok &= Kat.verify (buf, 1, RingElt.SCALAR)[Kat.REPLAY] == 2;
+    } catch (Exception e) {
+      ok = false;
+    } finally {
+      Files.delete (file);
+    }
+
+    return ok;
   }
 
 
@@ -0,0 +1,270 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Timing-variance test of the constant-time paths, after "Dude, is my code constant time?" by
+ * Reparaz, Balasch and Verbauwhede.
+ *
+ * For each target, measurements alternate at random between a fixed input and fresh random inputs.
+ * Each measurement times a batch of calls with System.nanoTime (the JVM offers no cycle counter).
+ * Inputs are prepared outside the timed region with the same work for both classes: a random input
+ * is always drawn and then either used or replaced by the fixed one, written into the same arrays,
+ * since any difference in the preparation shows up in the next measurement.
+ *
+ * The two classes are compared with Welch's t-test, accumulated online. Worker threads keep their
+ * own statistics and are merged at the end. A second test drops measurements above the 95th
+ * percentile of a warm-up sample, as interrupts and GC pauses otherwise dominate the variance.
+ * |t| above 4.5 in either test is reported as a leak.
+ *
+ *   java rlwe.TimingTest [-n measurements] [-threads n] [target ...]
+ *
+ * Targets: abs, ldDecode, correction, helpRec, agreement (default: all). Exits with status 1 if
+ * any target leaks, so the check can gate a build.
+ *
+ **************************************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+class TimingTest {
+  static final double THRESHOLD = 4.5;
+  static final int WARMUP = 10000;
+  static final int BATCH = 64;
+
+  static volatile long sink;                    // Keeps the JIT from discarding timed work
+
+
+  // One routine under test. prepare () builds the input for the next measurement outside the
+  // timed region; run () makes BATCH calls on it.
+  abstract static class Target {
+    final String name;
+
+    Target (String name) {
+      this.name = name;
+    }
+
+    abstract void prepare (boolean fixed, SplittableRandom rnd);
+    abstract void run ();
+  }
+
+
+  // Online mean and variance (Welford) for both classes
+  static class Welch {
+    final long[] n = new long[2];
+    final double[] mean = new double[2];
+    final double[] m2 = new double[2];
+
+
+    void add (int cls, double x) {
+      double delta = x - mean[cls];
+      n[cls]++;
+      mean[cls] += delta / n[cls];
+      m2[cls] += delta * (x - mean[cls]);
+    }
+
+
+    // Chan et al. combination of two partial results
+    void merge (Welch o) {
+      for (int c = 0; c < 2; c++) {
+	long total = n[c] + o.n[c];
+	if (total == 0)
+	  continue;
+	double delta = o.mean[c] - mean[c];
+	mean[c] += delta * o.n[c] / total;
+	m2[c] += o.m2[c] + delta * delta * n[c] * o.n[c] / total;
+	n[c] = total;
+      }
+    }
+
+
+    double t () {
+      if (n[0] < 2 || n[1] < 2)
+	return 0;
+      double v0 = m2[0] / (n[0] - 1), v1 = m2[1] / (n[1] - 1);
+      return (mean[0] - mean[1]) / Math.sqrt (v0 / n[0] + v1 / n[1]);
+    }
+  }
+
+
+  static List<Target> targets () {
+    final RlweKeyExchange kex = new RlweKeyExchange ();
+    final SplittableRandom seeded = new SplittableRandom (0x5eed);
+    List<Target> list = new ArrayList<Target> ();
+
+    list.add (new Target ("abs") {
+	final int[] fix = seeded.ints (BATCH, -Constants.Q16, Constants.Q16).toArray ();
+	final int[] x = new int[BATCH];
+	void prepare (boolean fixed, SplittableRandom rnd) {
+	  for (int i = 0; i < BATCH; i++) {
+	    int r = rnd.nextInt (-Constants.Q16, Constants.Q16);
+	    x[i] = fixed ? fix[i] : r;
+	  }
+	}
+	void run () {
+	  long s = 0;
+	  for (int i = 0; i < BATCH; i++)
+	    s += kex.abs (x[i]);
+	  sink = s;
+	}
+      });
+
+    list.add (new Target ("ldDecode") {
+	final int[] fix = seeded.ints (4 * BATCH, 0, 2 * Constants.Q16).toArray ();
+	final int[][] t = new int[BATCH][4];
+	void prepare (boolean fixed, SplittableRandom rnd) {
+	  for (int i = 0; i < BATCH; i++)
+	    for (int j = 0; j < 4; j++) {
+	      int r = rnd.nextInt (2 * Constants.Q16);
+	      t[i][j] = fixed ? fix[4*i + j] : r;
+	    }
+	}
+	void run () {
+	  long s = 0;
+	  for (int i = 0; i < BATCH; i++)
+	    s += kex.ldDecode (t[i]);
+	  sink = s;
+	}
+      });
+
+    list.add (new Target ("correction") {
+	final long[] fix = seeded.longs (Constants.N, -Constants.Q, 2 * Constants.Q).toArray ();
+	final RingElt v = new RingElt ();
+	void prepare (boolean fixed, SplittableRandom rnd) {
+	  for (int i = 0; i < Constants.N; i++) {
+	    long r = rnd.nextLong (-Constants.Q, 2 * Constants.Q);
+	    v.setCoeff (i, fixed ? fix[i] : r);
+	  }
+	}
+	void run () {
+	  v.correction ();
+	  sink = v.getCoeff (0);
+	}
+      });
+
+    list.add (new Target ("helpRec") {
+	final long[] fix = seeded.longs (Constants.N, 0, Constants.Q).toArray ();
+	final RingElt v = new RingElt ();
+	final byte[] out = new byte[Constants.numRecDataBytes];
+	void prepare (boolean fixed, SplittableRandom rnd) {
+	  for (int i = 0; i < Constants.N; i++) {
+	    long r = rnd.nextLong (0, Constants.Q);
+	    v.setCoeff (i, fixed ? fix[i] : r);
+	  }
+	}
+	void run () {
+	  kex.helpRec (v, out, 0);
+	  sink = out[0];
+	}
+      });
+
+    list.add (new Target ("agreement") {
+	final RlwePrivateKey kR = kex.generateKeyPair().getPrivateKey ();
+	final RlwePublicKey fix = kex.generateKeyPair().getPublicKey().toFourierDomain ();
+	RlwePublicKey kI;
+	void prepare (boolean fixed, SplittableRandom rnd) {
+	  RlwePublicKey r = kex.generateKeyPair().getPublicKey().toFourierDomain ();
+	  kI = fixed ? fix : r;
+	}
+	void run () {
+	  sink = kex.respAgreement (kR, kI)[0][0];
+	}
+      });
+
+    return list;
+  }
+
+
+  // Returns {all measurements, cropped} statistics for n measurements on one thread
+  static Welch[] measure (Target target, int n, long seed) {
+    SplittableRandom rnd = new SplittableRandom (seed);
+    Welch all = new Welch (), cropped = new Welch ();
+    long[] warm = new long[WARMUP];
+    long start, elapsed, cutoff;
+    int i, cls;
+
+    for (i = 0; i < WARMUP; i++) {
+      target.prepare (rnd.nextBoolean (), rnd);
+      start = System.nanoTime ();
+      target.run ();
+      warm[i] = System.nanoTime () - start;
+    }
+    Arrays.sort (warm);
+    cutoff = warm[WARMUP * 95 / 100];
+
+    for (i = 0; i < n; i++) {
+      cls = rnd.nextInt (2);
+      target.prepare (cls == 0, rnd);
+      start = System.nanoTime ();
+      target.run ();
+      elapsed = System.nanoTime () - start;
+
+      all.add (cls, elapsed);
+      if (elapsed <= cutoff)
+	cropped.add (cls, elapsed);
+    }
+
+    return new Welch[] {all, cropped};
+  }
+
+
+  public static void main (String[] args) throws Exception {
+    int i, n = 1000000, threads = Runtime.getRuntime().availableProcessors ();
+    List<String> names = new ArrayList<String> ();
+    boolean leak = false;
+
+    for (i = 0; i < args.length; i++) {
+      if (args[i].equals ("-n"))
+	n = Integer.parseInt (args[++i]);
+      else if (args[i].equals ("-threads"))
+	threads = Integer.parseInt (args[++i]);
+      else
+	names.add (args[i]);
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool (threads);
+
+    try {
+      for (String name : names.isEmpty () ? Arrays.asList ("abs", "ldDecode", "correction",
+							      "helpRec", "agreement") : names) {
+	List<Future<Welch[]>> parts = new ArrayList<Future<Welch[]>> ();
+	Welch all = new Welch (), cropped = new Welch ();
+	final int perThread = n / threads;
+
+	for (i = 0; i < threads; i++) {
+	  final long seed = i;
+	  parts.add (pool.submit (() -> measure (find (name), perThread, seed)));
+	}
+	for (Future<Welch[]> f : parts) {
+	  all.merge (f.get ()[0]);
+	  cropped.merge (f.get ()[1]);
+	}
+
+	boolean bad = Math.abs (all.t ()) > THRESHOLD || Math.abs (cropped.t ()) > THRESHOLD;
+	leak |= bad;
+	System.out.printf ("%-12s %,d measurements  t = %7.2f  cropped t = %7.2f  %s%n", name,
+			   all.n[0] + all.n[1], all.t (), cropped.t (),
+			   bad ? "POSSIBLE LEAK" : "ok");
+      }
+    } finally {
+      pool.shutdown ();
+    }
+
+    if (leak)
+      System.exit (1);
+  }
+
+
+  // Each thread gets its own target instances, so no state is shared while timing
+  private static Target find (String name) {
+    for (Target t : targets ())
+      if (t.name.equalsIgnoreCase (name))
+	return t;
+    throw new IllegalArgumentException ("Unknown target " + name);
+  }
+}
@@ -0,0 +1,333 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Recording of exchange inputs from a live process, and replay of the recording offline, so that
+ * performance can be measured on production keys and domain mixes.
+ *
+ * While a transcript is active, every agreement RlweKeyExchange performs appends one fixed-size
+ * record: the peer's public key as serialized (its first byte is the domain it arrived in) and,
+ * for the initiator's side, the reconciliation data it was given. With private keys enabled,
+ * a debugging aid only, the record also holds this side's private key, which makes the
+ * initiator's computation reproducible bit for bit. The log is a preallocated memory-mapped
+ * file: a writer claims a slot with one atomic increment and copies its bytes straight into the
+ * mapping, so recording takes no locks and does no I/O on the calling thread. The type byte is
+ * written last, and slots that were never completed read as empty and are skipped. When the log
+ * is full, further records are counted as dropped. Layout:
+ *
+ *       header   magic | version | record size | flags | record count (8) | dropped (8)
+ *       records  type (1) | flags (1) | padding (2) | peer public key | reconciliation data
+ *                | private key
+ *
+ * The record count is written when the transcript is stopped. A log from a process that died
+ * while recording has a count of 0 and is read up to the end of the file instead.
+ *
+ * Replay runs every record through RlweKeyExchange on a fork/join pool, using the recorded
+ * private key where there is one and a fixed key per worker thread otherwise, and reports the
+ * per-phase timings from RlweMetrics:
+ *
+ *   java rlwe.Transcript <file> [-threads n] [-passes n]
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.LongStream;
+
+
+class Transcript implements AutoCloseable {
+  static final int MAGIC = 0x524c5452;          // "RLTR"
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 32;
+
+  // Record types
+  static final byte RESP = 1;                   // respAgreement or encapsulate; peer is initiator
+  static final byte INIT = 2;                   // initAgreement or decapsulate; peer is responder
+
+  static final byte HAS_PRIVATE = 1;
+
+  static final int TYPE = 0;
+  static final int FLAGS = 1;
+  static final int PEER_KEY = 4;
+  static final int REC = PEER_KEY + Constants.numKeyBytes;
+  static final int PRIVATE = REC + Constants.numRecDataBytes;
+  static final int RECORD_BYTES = PRIVATE + Constants.numKeyBytes;
+
+  // Records per mapped segment, keeping each mapping under the 2 GB limit of a ByteBuffer
+  static final int SEGMENT_RECORDS = Integer.MAX_VALUE / RECORD_BYTES;
+
+  private static volatile Transcript active;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer[] segments;
+  private final long capacity;
+  private final boolean privateKeys;
+  private final AtomicLong next = new AtomicLong ();
+  private final LongAdder dropped = new LongAdder ();
+
+
+  private Transcript (Path file, long capacity, boolean privateKeys) throws IOException {
+    int i, nsegs = (int) ((capacity + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+
+    this.capacity = capacity;
+    this.privateKeys = privateKeys;
+    if (privateKeys) {
+      // Owner-only from the moment it exists; an existing file would keep its permissions
+      Files.deleteIfExists (file);
+      channel = FileChannel.open (file, Set.of (StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.READ, StandardOpenOption.WRITE),
+				  PosixFilePermissions.asFileAttribute (PosixFilePermissions
+									.fromString ("rw-------")));
+    } else
+      channel = FileChannel.open (file, StandardOpenOption.CREATE,
+				  StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				  StandardOpenOption.WRITE);
+
+    try {
+      MappedByteBuffer header = channel.map (FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      header.putInt (0, MAGIC).putInt (4, VERSION).putInt (8, RECORD_BYTES)
+	.putInt (12, privateKeys ? HAS_PRIVATE : 0);
+
+      segments = new MappedByteBuffer[nsegs];
+      for (i = 0; i < nsegs; i++)
+	segments[i] = channel.map (FileChannel.MapMode.READ_WRITE,
+				   HEADER_BYTES + (long) i * SEGMENT_RECORDS * RECORD_BYTES,
+				   Math.min (SEGMENT_RECORDS, capacity - (long) i * SEGMENT_RECORDS)
+				   * RECORD_BYTES);
+    } catch (IOException e) {
+      channel.close ();
+      throw e;
+    }
+  }
+
+
+  // Starts recording every agreement in this process to file, which holds up to capacity records.
+  // With privateKeys set, this side's private key is recorded too; never enable that in
+  // production.
+  static synchronized Transcript start (Path file, long capacity, boolean privateKeys)
+    throws IOException {
+    if (active != null)
+      throw new IllegalStateException ("A transcript is already being recorded");
+    active = new Transcript (file, capacity, privateKeys);
+    return active;
+  }
+
+
+  // Stops recording and completes the header. Agreements still in progress may be lost.
+  public void close () throws IOException {
+    synchronized (Transcript.class) {
+      if (active == this)
+	active = null;
+    }
+
+    MappedByteBuffer header = channel.map (FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    header.putLong (16, Math.min (next.get (), capacity)).putLong (24, dropped.sum ());
+    header.force ();
+    for (MappedByteBuffer s : segments)
+      s.force ();
+    channel.close ();
+  }
+
+
+  static void recordResp (RlwePublicKey peer, RlwePrivateKey own) {
+    Transcript t = active;
+    if (t != null)
+      t.record (RESP, peer, null, 0, own);
+  }
+
+
+  static void recordInit (RlwePublicKey peer, byte[] rdata, int offset, RlwePrivateKey own) {
+    Transcript t = active;
+    if (t != null)
+      t.record (INIT, peer, rdata, offset, own);
+  }
+
+
+  private void record (byte type, RlwePublicKey peer, byte[] rdata, int offset,
+		       RlwePrivateKey own) {
+    long n = next.getAndIncrement ();
+    MappedByteBuffer seg;
+    int pos;
+
+    if (n >= capacity) {
+      dropped.increment ();
+      return;
+    }
+
+    seg = segments[(int) (n / SEGMENT_RECORDS)];
+    pos = (int) (n % SEGMENT_RECORDS) * RECORD_BYTES;
+
+    peer.serialize (seg, pos + PEER_KEY);
+    if (rdata != null)
+      seg.put (pos + REC, rdata, offset, Constants.numRecDataBytes);
+    if (privateKeys) {
+      seg.put (pos + PRIVATE, own.serialize ());
+      seg.put (pos + FLAGS, HAS_PRIVATE);
+    }
+    seg.put (pos + TYPE, type);                 // Last, so an unfinished record reads as empty
+  }
+
+
+  long getDropped () {
+    return dropped.sum ();
+  }
+
+
+  static class Replay {
+    final long[] counts = new long[3];          // By record type; counts[0] is skipped slots
+    final HistogramRecorder metrics;
+    long nanos;
+
+
+    Replay (HistogramRecorder metrics) {
+      this.metrics = metrics;
+    }
+
+
+    long records () {
+      return counts[RESP] + counts[INIT];
+    }
+  }
+
+
+  private static final ThreadLocal<RlweKeyPair> replayKeys =
+    ThreadLocal.withInitial (() -> replayExchange().generateKeyPair ());
+  private static RlweKeyExchange replayKex;
+
+
+  private static synchronized RlweKeyExchange replayExchange () {
+    if (replayKex == null)
+      replayKex = new RlweKeyExchange ();
+    return replayKex;
+  }
+
+
+  // Runs every record of the transcript passes times on threads workers, with a fresh metrics
+  // recorder installed for the duration
+  static Replay replay (Path file, int threads, int passes) throws Exception {
+    RlweKeyExchange kex = replayExchange ();
+    RlweMetrics.Recorder saved = RlweMetrics.installed ();
+    Replay result = new Replay (new HistogramRecorder ());
+    AtomicLongArray counts = new AtomicLongArray (result.counts.length);
+    ForkJoinPool pool = new ForkJoinPool (threads);
+    MappedByteBuffer[] segs;
+    long count, start;
+
+    try (FileChannel ch = FileChannel.open (file, StandardOpenOption.READ)) {
+      count = header (ch);
+      segs = new MappedByteBuffer[(int) ((count + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS)];
+      for (int i = 0; i < segs.length; i++)
+	segs[i] = ch.map (FileChannel.MapMode.READ_ONLY,
+			  HEADER_BYTES + (long) i * SEGMENT_RECORDS * RECORD_BYTES,
+			  Math.min (SEGMENT_RECORDS, count - (long) i * SEGMENT_RECORDS)
+			  * RECORD_BYTES);
+    }
+
+    try {
+      RlweMetrics.install (result.metrics);
+      start = System.nanoTime ();
+      for (int p = 0; p < passes; p++)
+	pool.submit (() -> LongStream.range (0, count).parallel ().forEach (n -> {
+	      ByteBuffer rec = segs[(int) (n / SEGMENT_RECORDS)]
+		.slice ((int) (n % SEGMENT_RECORDS) * RECORD_BYTES, RECORD_BYTES);
+	      counts.incrementAndGet (run (kex, rec));
+	    })).get ();
+      result.nanos = System.nanoTime () - start;
+    } finally {
+      RlweMetrics.install (saved);
+      pool.shutdown ();
+    }
+
+    for (int k = 0; k < result.counts.length; k++)
+      result.counts[k] = counts.get (k);
+    return result;
+  }
+
+
+  // Replays one record and returns its type, or 0 for an empty slot
+  private static int run (RlweKeyExchange kex, ByteBuffer rec) {
+    byte type = rec.get (TYPE);
+    RlwePrivateKey own;
+    RlwePublicKey peer;
+
+    if (type != RESP && type != INIT)
+      return 0;
+
+    peer = new RlwePublicKey (bytes (rec, PEER_KEY, Constants.numKeyBytes), 0);
+    own = (rec.get (FLAGS) & HAS_PRIVATE) != 0
+      ? new RlwePrivateKey (bytes (rec, PRIVATE, Constants.numKeyBytes))
+      : replayKeys.get().getPrivateKey ();
+
+    if (type == RESP)
+      kex.respAgreement (own, peer);
+    else
+      kex.initAgreement (own, peer, bytes (rec, REC, Constants.numRecDataBytes));
+    return type;
+  }
+
+
+  private static byte[] bytes (ByteBuffer rec, int offset, int length) {
+    byte[] b = new byte[length];
+    rec.get (offset, b);
+    return b;
+  }
+
+
+  // Validates the header and returns the number of record slots to read
+  static long header (FileChannel ch) throws IOException {
+    ByteBuffer h = ByteBuffer.allocate (HEADER_BYTES);
+    long count, slots;
+
+    ch.read (h, 0);
+    if (h.position () < HEADER_BYTES || h.getInt (0) != MAGIC)
+      throw new IOException ("Not an RLWE transcript");
+    if (h.getInt (4) != VERSION || h.getInt (8) != RECORD_BYTES)
+      throw new IOException ("Unsupported transcript version " + h.getInt (4));
+
+    count = h.getLong (16);
+    slots = (ch.size () - HEADER_BYTES) / RECORD_BYTES;
+    if (count > slots)
+      throw new IOException ("Transcript is truncated");
+    return count > 0 ? count : slots;
+  }
+
+
+  public static void main (String[] args) throws Exception {
+    int i, threads = Runtime.getRuntime().availableProcessors (), passes = 3;
+
+    if (args.length < 1) {
+      System.err.println ("usage: java rlwe.Transcript <file> [-threads n] [-passes n]");
+      System.exit (2);
+    }
+
+    for (i = 1; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+      case "-threads": threads = Integer.parseInt (args[i + 1]); break;
+      case "-passes":  passes = Integer.parseInt (args[i + 1]); break;
+      default:
+	throw new IllegalArgumentException ("Unknown option " + args[i]);
+      }
+    }
+
+    replay (Paths.get (args[0]), threads, 1);     // Warm-up
+    Replay r = replay (Paths.get (args[0]), threads, passes);
+
+    System.out.printf ("%d records (%d resp, %d init, %d empty slots) x %d passes on %d threads: "
+		       + "%.0f agreements/s%n", r.records () / passes, r.counts[RESP] / passes,
+		       r.counts[INIT] / passes, r.counts[0] / passes, passes, threads,
+		       r.records () / (r.nanos / 1e9));
+    System.out.print (r.metrics.export ());
+  }
+}
@@ -0,0 +1,86 @@
+package rlwe;
+
+/**************************************************************************************************
+ *
+ * Per-thread scratch space for key generation and agreement.
+ *
+ * Everything an exchange needs between its inputs and its outputs (the noise samples, the
+ * agreement polynomial, the random bits and the reconciliation vectors) lives here and is reused
+ * by every call on the same thread, so the only allocations left are the keys, secrets and
+ * reconciliation data handed back to the caller. The exchange methods call clear () before they
+ * return, normally or by an exception, which overwrites the arrays that held secret-dependent
+ * values. Sample.getSample zeroes the random bits itself, since key constructors outside the
+ * exchange methods sample through it too.
+ *
+ * A workspace must not be used by two operations at once; none of the exchange methods call each
+ * other while holding one.
+ *
+ **************************************************************************************************/
+
+import java.util.Arrays;
+
+
+class Workspace {
+  private static final ThreadLocal<Workspace> LOCAL = ThreadLocal.withInitial (Workspace::new);
+
+  final RingElt v = new RingElt ();             // Agreement polynomial
+  final RingElt e = new RingElt ();             // Noise sample consumed by the operation
+  final byte[] sampleBits = new byte[2 * Sample.SAMPLE_BYTES];
+  final byte[] recBits = new byte[Constants.numSecretBytes];
+  final int[] rdata = new int[Constants.N];
+  final int[] v0 = new int[4];
+  final int[] v1 = new int[4];
+  final int[] t = new int[4];
+  final long[] lanesX = new long[Constants.N / Swar.LANES];
+  final long[] lanesY = new long[Constants.N / Swar.LANES];
+  private RingElt[] group;                      // Agreement polynomials, batched
+  private long[] interleaved;
+
+
+  static Workspace get () {
+    return LOCAL.get ();
+  }
+
+
+  void clear () {
+    v.clear ();
+    e.clear ();
+    Arrays.fill (sampleBits, (byte) 0);
+    Arrays.fill (recBits, (byte) 0);
+    Arrays.fill (rdata, 0);
+    Arrays.fill (v0, 0);
+    Arrays.fill (v1, 0);
+    Arrays.fill (t, 0);
+    Arrays.fill (lanesX, 0);
+    Arrays.fill (lanesY, 0);
+  }
+
+
+  // Scratch for the batched methods, about 128 KB, allocated on first use so that threads running
+  // only single exchanges don't carry it
+  RingElt[] group () {
+    if (group == null) {
+      group = new RingElt[RingElt.INTERLEAVE];
+      for (int i = 0; i < group.length; i++)
+	group[i] = new RingElt ();
+      interleaved = new long[RingElt.INTERLEAVE * Constants.N];
+    }
+    return group;
+  }
+
+
+  long[] interleaved () {
+    group ();
+    return interleaved;
+  }
+
+
+  // Kept apart from clear (), which every exchange calls, since only the batched methods use them
+  void clearGroup () {
+    if (group == null)
+      return;
+    for (RingElt g : group)
+      g.clear ();
+    Arrays.fill (interleaved, 0);
+  }
+}
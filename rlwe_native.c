@@ -0,0 +1,232 @@
+/**************************************************************************************************
+ *
+ * Optional native kernels for the RLWE key exchange, loaded by the Native class in RlweNative.java
+ * and selected by AutoTune like any other RingElt backend.
+ *
+ * Each function is a line-for-line port of the Java method it replaces (RingElt.ntt, nttInv,
+ * pointwiseMult, pointwiseMultAdd and the arithmetic of RlweKeyExchange.helpRec and rec) on the
+ * same 64-bit values, so results are identical; AutoTune checks that before it will select the
+ * backend. The gain comes from the compiler: the butterfly and pointwise loops vectorize, and
+ * there are no bounds checks. Arrays are accessed in place through the JNI critical calls.
+ *
+ * Build on Linux with
+ *
+ *   gcc -O3 -march=native -shared -fPIC -I$JAVA_HOME/include -I$JAVA_HOME/include/linux \
+ *       rlwe_native.c -o librlwe.so
+ *
+ * and put librlwe.so on java.library.path, or name it with -Drlwe.native.path=/path/librlwe.so.
+ *
+ **************************************************************************************************/
+
+#include <jni.h>
+#include <stdint.h>
+#include <string.h>
+
+#define N 1024
+#define Q 12289
+#define Q2 24578
+#define Q4 49156
+#define Q8 98312
+#define Q16 196624
+
+static int64_t psi_rev[N];
+static int64_t omega_inv_rev[N];
+static int64_t n_inv_multiplier;
+static int64_t omega_inv_multiplier;
+
+
+static inline int64_t reduce12289 (int64_t a) {
+  int64_t c0 = a & 0xfff;
+  int64_t c1 = a >> 12;
+
+  return 3 * c0 - c1;
+}
+
+
+static inline int32_t abs32 (int32_t x) {
+  int32_t mask = x >> 31;
+  return (mask ^ x) - mask;
+}
+
+
+static void ntt (int64_t *c) {
+  int m, i, j, j1, k = N;
+  int64_t S, U, V;
+
+  for (m = 1; m < N; m <<= 1) {
+    k >>= 1;
+
+    for (i = 0; i < m; i++) {
+      j1 = i * k << 1;
+      S = psi_rev[m + i];
+
+      for (j = j1; j < j1 + k; j++) {
+	U = c[j];
+	V = reduce12289 (c[j + k] * S);
+	c[j] = U + V;
+	c[j + k] = U - V;
+      }
+    }
+  }
+
+  for (i = 0; i < N; i++)
+    c[i] = reduce12289 (c[i]);
+}
+
+
+static void ntt_inv (int64_t *c) {
+  int m, h, i, j, j1, k = 1;
+  int64_t S, U, V, mask;
+
+  for (m = N; m > 2; m >>= 1) {
+    j1 = 0;
+    h = m >> 1;
+
+    for (i = 0; i < h; i++) {
+      S = omega_inv_rev[h + i];
+
+      for (j = j1; j < j1 + k; j++) {
+	U = c[j];
+	V = c[j + k];
+	c[j] = U + V;
+	c[j + k] = reduce12289 ((U - V) * S);
+      }
+
+      j1 += 2 * k;
+    }
+
+    k <<= 1;
+  }
+
+  for (j = 0; j < k; j++) {
+    U = c[j];
+    V = c[j + k];
+    c[j] = reduce12289 ((U + V) * n_inv_multiplier);
+    c[j + k] = reduce12289 ((U - V) * omega_inv_multiplier);
+  }
+
+  for (i = 0; i < N; i++) {                     // twoReduce, then correction
+    c[i] = reduce12289 (reduce12289 (c[i]));
+    mask = c[i] >> 15;
+    c[i] += (Q & mask) - Q;
+    mask = c[i] >> 15;
+    c[i] += Q & mask;
+  }
+}
+
+
+JNIEXPORT void JNICALL Java_rlwe_Native_init (JNIEnv *env, jclass cls, jlongArray psi,
+					      jlongArray omegaInv, jlong nInv, jlong omegaInvMult) {
+  (*env)->GetLongArrayRegion (env, psi, 0, N, (jlong *) psi_rev);
+  (*env)->GetLongArrayRegion (env, omegaInv, 0, N, (jlong *) omega_inv_rev);
+  n_inv_multiplier = nInv;
+  omega_inv_multiplier = omegaInvMult;
+}
+
+
+JNIEXPORT void JNICALL Java_rlwe_Native_ntt (JNIEnv *env, jclass cls, jlongArray coeff) {
+  int64_t *c = (*env)->GetPrimitiveArrayCritical (env, coeff, NULL);
+
+  ntt (c);
+  (*env)->ReleasePrimitiveArrayCritical (env, coeff, c, 0);
+}
+
+
+JNIEXPORT void JNICALL Java_rlwe_Native_nttInv (JNIEnv *env, jclass cls, jlongArray coeff) {
+  int64_t *c = (*env)->GetPrimitiveArrayCritical (env, coeff, NULL);
+
+  ntt_inv (c);
+  (*env)->ReleasePrimitiveArrayCritical (env, coeff, c, 0);
+}
+
+
+// c = a * b + d, or a * b when d is null; c may be any of the operands
+JNIEXPORT void JNICALL Java_rlwe_Native_pointwiseMultAdd (JNIEnv *env, jclass cls, jlongArray a,
+							  jlongArray b, jlongArray d,
+							  jlongArray c) {
+  int64_t *pa = (*env)->GetPrimitiveArrayCritical (env, a, NULL);
+  int64_t *pb = (*env)->GetPrimitiveArrayCritical (env, b, NULL);
+  int64_t *pd = d == NULL ? NULL : (*env)->GetPrimitiveArrayCritical (env, d, NULL);
+  int64_t *pc = (*env)->GetPrimitiveArrayCritical (env, c, NULL);
+  int i;
+
+  if (pd == NULL) {
+    for (i = 0; i < N; i++)
+      pc[i] = reduce12289 (reduce12289 (pa[i] * pb[i]));
+  } else {
+    for (i = 0; i < N; i++)
+      pc[i] = reduce12289 (reduce12289 (pa[i] * pb[i] + pd[i]));
+  }
+
+  (*env)->ReleasePrimitiveArrayCritical (env, c, pc, 0);
+  if (pd != NULL)
+    (*env)->ReleasePrimitiveArrayCritical (env, d, pd, JNI_ABORT);
+  (*env)->ReleasePrimitiveArrayCritical (env, b, pb, JNI_ABORT);
+  (*env)->ReleasePrimitiveArrayCritical (env, a, pa, JNI_ABORT);
+}
+
+
+// Reconciliation data for v, one 2-bit value per int, from 32 bytes of random bits
+JNIEXPORT void JNICALL Java_rlwe_Native_helpRec (JNIEnv *env, jclass cls, jlongArray coeff,
+						 jbyteArray bits, jintArray out) {
+  int64_t *v = (*env)->GetPrimitiveArrayCritical (env, coeff, NULL);
+  uint8_t *randbits = (*env)->GetPrimitiveArrayCritical (env, bits, NULL);
+  int32_t *rdata = (*env)->GetPrimitiveArrayCritical (env, out, NULL);
+  int32_t i, j, k, x, rbit, v0[4], v1[4];
+
+  for (i = 0; i < 256; i++) {
+    rbit = (randbits[31 - (i >> 3)] >> (i & 7)) & 1;
+
+    k = 0;
+    for (j = 0; j < 4; j++) {
+      x = 8 * (int32_t) v[i + 256 * j] + 4 * rbit;
+      v0[j] = (x + Q) / Q2;
+      v1[j] = x / Q2;
+      k += abs32 (x - v0[j] * Q2);
+    }
+
+    k = (Q2 - 1 - k) >> 31;
+
+    for (j = 0; j < 4; j++)
+      v0[j] = ((~k) & v0[j]) ^ (k & v1[j]);
+
+    rdata[i] = (v0[0] - v0[3]) & 3;
+    rdata[i + 256] = (v0[1] - v0[3]) & 3;
+    rdata[i + 512] = (v0[2] - v0[3]) & 3;
+    rdata[i + 768] = (-k + 2 * v0[3]) & 3;
+  }
+
+  (*env)->ReleasePrimitiveArrayCritical (env, out, rdata, 0);
+  (*env)->ReleasePrimitiveArrayCritical (env, bits, randbits, JNI_ABORT);
+  (*env)->ReleasePrimitiveArrayCritical (env, coeff, v, JNI_ABORT);
+}
+
+
+static inline int32_t dist (int32_t x) {
+  int32_t t = (x + Q4) / Q8;
+  return abs32 (t * Q8 - x);
+}
+
+
+// ORs the 256-bit secret for v and the unpacked reconciliation data into key[keyOffset...]
+JNIEXPORT void JNICALL Java_rlwe_Native_rec (JNIEnv *env, jclass cls, jlongArray coeff,
+					     jintArray in, jbyteArray out, jint keyOffset) {
+  int64_t *v = (*env)->GetPrimitiveArrayCritical (env, coeff, NULL);
+  int32_t *rdata = (*env)->GetPrimitiveArrayCritical (env, in, NULL);
+  uint8_t *key = (*env)->GetPrimitiveArrayCritical (env, out, NULL);
+  int32_t i, norm;
+
+  for (i = 0; i < 256; i++) {
+    norm = dist (Q16 + 8 * (int32_t) v[i] - Q * (2 * rdata[i] + rdata[i + 768]))
+      + dist (Q16 + 8 * (int32_t) v[i + 256] - Q * (2 * rdata[i + 256] + rdata[i + 768]))
+      + dist (Q16 + 8 * (int32_t) v[i + 512] - Q * (2 * rdata[i + 512] + rdata[i + 768]))
+      + dist (Q16 + 8 * (int32_t) v[i + 768] - Q * rdata[i + 768]);
+
+    norm = (norm - Q8) >> 31;
+    key[keyOffset + (i >> 3)] |= (norm & 1) << (i & 7);
+  }
+
+  (*env)->ReleasePrimitiveArrayCritical (env, out, key, 0);
+  (*env)->ReleasePrimitiveArrayCritical (env, in, rdata, JNI_ABORT);
+  (*env)->ReleasePrimitiveArrayCritical (env, coeff, v, JNI_ABORT);
+}